@@ -0,0 +1,93 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.benchmark;
+
+import com.commonsware.cwac.security.trust.CompositeTrustManager;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.X509TrustManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times CompositeTrustManager.checkServerTrusted() for a
+ * chain that it accepts, with composites of several sizes.
+ * A matchAll composite has that many managers, all of which
+ * accept the chain. A matchAny composite has that many
+ * managers, only the last of which accepts the chain, which
+ * is its worst case: every other manager throws first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class CompositeTrustBenchmark {
+  @Param({"matchAll", "matchAny"})
+  String mode;
+
+  @Param({"1", "4", "16"})
+  int depth;
+
+  private X509Certificate[] chain;
+  private CompositeTrustManager composite;
+
+  @Setup
+  public void createComposite() throws GeneralSecurityException,
+    IOException {
+    X509TrustManager accepting=
+      TrustFixtures.trusting(Collections.singleton(TrustFixtures.root()));
+    X509TrustManager rejecting=
+      TrustFixtures.trusting(TrustFixtures.fillers());
+    X509TrustManager[] managers=new X509TrustManager[depth];
+
+    for (int i=0; i<depth; i++) {
+      if ("matchAll".equals(mode) || i==depth-1) {
+        managers[i]=accepting;
+      }
+      else {
+        managers[i]=rejecting;
+      }
+    }
+
+    chain=TrustFixtures.chain();
+
+    if ("matchAll".equals(mode)) {
+      composite=CompositeTrustManager.matchAll(managers);
+    }
+    else {
+      composite=CompositeTrustManager.matchAny(managers);
+    }
+  }
+
+  @Benchmark
+  public void checkServerTrusted() throws CertificateException {
+    composite.checkServerTrusted(chain, TrustFixtures.AUTH_TYPE);
+  }
+}
@@ -0,0 +1,59 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.benchmark;
+
+import com.commonsware.cwac.security.HexUtils;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times HexUtils.toHexStringWithColons(), which is what
+ * SignatureUtils.toHexStringWithColons() calls, for a SHA-1
+ * and a SHA-256 digest and for a larger array.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class HexBenchmark {
+  @Param({"20", "32", "256"})
+  int size;
+
+  private byte[] bytes;
+
+  @Setup
+  public void createBytes() {
+    bytes=new byte[size];
+    new Random(size).nextBytes(bytes);
+  }
+
+  @Benchmark
+  public String toHexStringWithColons() {
+    return(HexUtils.toHexStringWithColons(bytes));
+  }
+}
@@ -0,0 +1,103 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Certificates and trust managers for the trust benchmarks.
+ * chain.pem is a server certificate and its intermediate,
+ * issued by root.pem; fillers.pem is 63 unrelated
+ * self-signed certificates, to pad out key stores. All were
+ * generated for these benchmarks, with 100-year lifetimes.
+ */
+final class TrustFixtures {
+  static final String AUTH_TYPE="RSA";
+
+  static X509Certificate[] chain() throws GeneralSecurityException,
+    IOException {
+    List<X509Certificate> certs=load("chain.pem");
+
+    return(certs.toArray(new X509Certificate[certs.size()]));
+  }
+
+  static X509Certificate root() throws GeneralSecurityException,
+    IOException {
+    return(load("root.pem").get(0));
+  }
+
+  static List<X509Certificate> fillers() throws GeneralSecurityException,
+    IOException {
+    return(load("fillers.pem"));
+  }
+
+  /**
+   * @return a trust manager backed by a key store holding the
+   * given certificates, aliased by subject
+   */
+  static X509TrustManager trusting(Collection<X509Certificate> certs)
+    throws GeneralSecurityException, IOException {
+    KeyStore store=KeyStore.getInstance(KeyStore.getDefaultType());
+
+    store.load(null, null);
+
+    for (X509Certificate cert : certs) {
+      store.setCertificateEntry(cert.getSubjectDN().getName(), cert);
+    }
+
+    TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+
+    tmf.init(store);
+
+    for (TrustManager t : tmf.getTrustManagers()) {
+      if (t instanceof X509TrustManager) {
+        return((X509TrustManager)t);
+      }
+    }
+
+    throw new IllegalStateException("No X509TrustManager available");
+  }
+
+  private static List<X509Certificate> load(String name)
+    throws GeneralSecurityException, IOException {
+    InputStream in=TrustFixtures.class.getResourceAsStream(name);
+    ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+
+    try {
+      CertificateFactory cf=CertificateFactory.getInstance("X.509");
+
+      for (Certificate cert : cf.generateCertificates(in)) {
+        result.add((X509Certificate)cert);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(result);
+  }
+}
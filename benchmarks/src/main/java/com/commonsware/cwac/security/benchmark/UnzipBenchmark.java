@@ -0,0 +1,92 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.benchmark;
+
+import com.commonsware.cwac.security.ZipUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times ZipUtils.unzip() of a File, for each archive shape
+ * and compression method, on one thread and on several.
+ * Files are not synced (Durability.NONE), as fsync() times
+ * say more about the disk than about the code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class UnzipBenchmark {
+  @Param
+  ZipFixtures.Shape shape;
+
+  @Param
+  ZipFixtures.Compression compression;
+
+  @Param({"1", "4"})
+  int threadCount;
+
+  private File root;
+  private File zipFile;
+  private File destDir;
+  private ZipUtils.Options options;
+
+  @Setup(Level.Trial)
+  public void createArchive() throws IOException {
+    root=File.createTempFile("unzip-benchmark", "");
+    root.delete();
+    root.mkdirs();
+    zipFile=new File(root, "fixture.zip");
+    destDir=new File(root, "dest");
+    ZipFixtures.write(zipFile, shape, compression);
+
+    options=new ZipUtils.Options()
+      .maxEntries(shape.entries)
+      .maxSize((long)shape.entries*shape.entrySize)
+      .threadCount(threadCount)
+      .durability(ZipUtils.Durability.NONE);
+  }
+
+  @Setup(Level.Invocation)
+  public void clearDestination() {
+    ZipUtils.delete(destDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteArchive() {
+    ZipUtils.delete(root);
+  }
+
+  @Benchmark
+  public void unzip() throws ZipUtils.UnzipException, IOException {
+    ZipUtils.unzip(zipFile, destDir, options);
+  }
+}
@@ -0,0 +1,121 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the archives that UnzipBenchmark unzips. Contents
+ * come from a seeded Random over a 16-letter alphabet, so
+ * every run gets the same archive, and deflating it roughly
+ * halves its size, like typical text content.
+ *
+ * The class and its enums are public, as UnzipBenchmark uses
+ * the enums as @Param types, and JMH generates its code for
+ * them in another package.
+ */
+public final class ZipFixtures {
+  private static final byte[] ALPHABET="abcdefghijklmnop".getBytes();
+
+  public enum Shape {
+    SMALL_MANY(2000, 2048, 1),
+    LARGE_FEW(4, 16*1024*1024, 1),
+    DEEP_PATHS(500, 2048, 32);
+
+    final int entries;
+    final int entrySize;
+    final int depth;
+
+    Shape(int entries, int entrySize, int depth) {
+      this.entries=entries;
+      this.entrySize=entrySize;
+      this.depth=depth;
+    }
+  }
+
+  public enum Compression {
+    STORED(ZipEntry.STORED),
+    DEFLATED(ZipEntry.DEFLATED);
+
+    final int method;
+
+    Compression(int method) {
+      this.method=method;
+    }
+  }
+
+  static void write(File zipFile, Shape shape, Compression compression)
+    throws IOException {
+    Random random=new Random(shape.ordinal());
+    byte[] contents=new byte[shape.entrySize];
+    ZipOutputStream zos=new ZipOutputStream(new FileOutputStream(zipFile));
+
+    try {
+      for (int i=0; i<shape.entries; i++) {
+        for (int j=0; j<contents.length; j++) {
+          contents[j]=ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+
+        ZipEntry entry=new ZipEntry(pathFor(shape, i));
+
+        entry.setMethod(compression.method);
+
+        // STORED entries need their size and CRC up front
+
+        if (compression==Compression.STORED) {
+          CRC32 crc=new CRC32();
+
+          crc.update(contents);
+          entry.setSize(contents.length);
+          entry.setCompressedSize(contents.length);
+          entry.setCrc(crc.getValue());
+        }
+
+        zos.putNextEntry(entry);
+        zos.write(contents);
+        zos.closeEntry();
+      }
+    }
+    finally {
+      zos.close();
+    }
+  }
+
+  // spread across ten top-level directories, so a deep shape
+  // has more than one deep tree to create
+
+  private static String pathFor(Shape shape, int i) {
+    StringBuilder buf=new StringBuilder();
+
+    for (int level=1; level<shape.depth; level++) {
+      if (level==1) {
+        buf.append("top").append(i%10);
+      }
+      else {
+        buf.append("level").append(level);
+      }
+
+      buf.append('/');
+    }
+
+    return(buf.append("file").append(i).append(".txt").toString());
+  }
+}
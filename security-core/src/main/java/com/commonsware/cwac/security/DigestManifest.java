@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The expected digests from ZipUtils.Options.manifest(),
+ * keyed by normalized entry name, with the digests decoded
+ * from hex. Every file that gets unzipped has to be listed,
+ * and every listed file has to be unzipped.
+ */
+final class DigestManifest {
+  private final String algorithm;
+  private final HashMap<String, byte[]> digests=new HashMap<String, byte[]>();
+  private final HashSet<String> seen=new HashSet<String>();
+
+  /**
+   * @return the manifest from the Options, or null if there
+   * is none
+   */
+  static DigestManifest create(ZipUtils.Options options) {
+    if (options.manifest==null) {
+      return(null);
+    }
+
+    return(new DigestManifest(options.manifest, options.manifestAlgorithm,
+      options.filter));
+  }
+
+  private DigestManifest(Map<String, String> manifest, String algorithm,
+                         ZipUtils.EntryFilter filter) {
+    this.algorithm=algorithm;
+
+    for (Map.Entry<String, String> entry : manifest.entrySet()) {
+      String name=EntryPathValidator.normalize(entry.getKey());
+
+      // listed files that are filtered out are not expected
+
+      if (filter==null || filter.accept(name)) {
+        digests.put(name, decode(entry.getKey(), entry.getValue()));
+      }
+    }
+
+    newDigest(); // fail now if the algorithm is not supported
+  }
+
+  /**
+   * Checks, up front, that the files to be unzipped are
+   * exactly the files in the manifest.
+   *
+   * @param names normalized names of the files to be unzipped
+   */
+  void checkNames(Collection<String> names) {
+    for (String name : names) {
+      expected(name);
+    }
+
+    if (names.size()!=digests.size()) {
+      for (String name : digests.keySet()) {
+        if (!names.contains(name)) {
+          throw new IllegalStateException("ZIP entry in manifest is missing: "+
+            name);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param name normalized name of a file to be unzipped
+   * @return the digest that its contents should have
+   * @throws IllegalStateException if the file is not listed
+   */
+  byte[] expected(String name) {
+    byte[] result=digests.get(name);
+
+    if (result==null) {
+      throw new IllegalStateException("ZIP entry not in manifest: "+name);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Notes that a file has been unzipped, for manifests
+   * checked as we go, rather than up front.
+   */
+  void markSeen(String name) {
+    seen.add(name);
+  }
+
+  /**
+   * @throws IllegalStateException if a listed file was not
+   * passed to markSeen()
+   */
+  void checkAllSeen() {
+    checkNames(seen);
+  }
+
+  MessageDigest newDigest() {
+    try {
+      return(MessageDigest.getInstance(algorithm));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Unsupported digest algorithm: "+
+        algorithm, e);
+    }
+  }
+
+  static void verify(String name, MessageDigest digest, byte[] expected) {
+    if (!MessageDigest.isEqual(digest.digest(), expected)) {
+      throw new IllegalStateException("ZIP entry does not match manifest: "+
+        name);
+    }
+  }
+
+  // accepts upper or lower case, with or without colons, as
+  // from HexUtils.toHexStringWithColons()
+
+  private static byte[] decode(String name, String hex) {
+    String digits=hex.replace(":", "").trim();
+
+    if (digits.length()==0 || digits.length()%2!=0) {
+      throw new IllegalArgumentException("Bad digest in manifest for "+name);
+    }
+
+    byte[] result=new byte[digits.length()/2];
+
+    for (int i=0; i<result.length; i++) {
+      int high=Character.digit(digits.charAt(i*2), 16);
+      int low=Character.digit(digits.charAt(i*2+1), 16);
+
+      if (high<0 || low<0) {
+        throw new IllegalArgumentException("Bad digest in manifest for "+
+          name);
+      }
+
+      result[i]=(byte)((high<<4) | low);
+    }
+
+    return(result);
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * Syncs directories, so that the entries in them (new files,
+ * new subdirectories, renames) survive a crash, not just the
+ * contents of the files. java.io has no way to open a
+ * directory, so this needs java.nio.file or android.system.Os;
+ * without either, it does nothing.
+ */
+final class DirectorySync {
+  private static final Method TO_PATH;
+  private static final Method CHANNEL_OPEN;
+  private static final Object READ_ONLY;
+  private static final Method OS_OPEN;
+  private static final Method OS_FSYNC;
+  private static final Method OS_CLOSE;
+  private static final int O_RDONLY;
+
+  // java.nio.file is API 26+ (and any desktop JVM), and is
+  // tried first; android.system.Os is API 21+
+
+  static {
+    Method toPath=null;
+    Method channelOpen=null;
+    Object readOnly=null;
+    Method osOpen=null;
+    Method osFsync=null;
+    Method osClose=null;
+    int rdOnly=0;
+
+    try {
+      Class<?> openOption=Class.forName("java.nio.file.OpenOption");
+      Class<?> standardOpenOption=
+        Class.forName("java.nio.file.StandardOpenOption");
+
+      readOnly=Array.newInstance(openOption, 1);
+      Array.set(readOnly, 0, standardOpenOption.getField("READ").get(null));
+      toPath=File.class.getMethod("toPath");
+      channelOpen=FileChannel.class.getMethod("open",
+        toPath.getReturnType(), readOnly.getClass());
+    }
+    catch (Exception e) {
+      channelOpen=null;
+    }
+
+    try {
+      Class<?> os=Class.forName("android.system.Os");
+      Class<?> fd=Class.forName("java.io.FileDescriptor");
+
+      rdOnly=Class.forName("android.system.OsConstants")
+        .getField("O_RDONLY").getInt(null);
+      osOpen=os.getMethod("open", String.class, int.class, int.class);
+      osFsync=os.getMethod("fsync", fd);
+      osClose=os.getMethod("close", fd);
+    }
+    catch (Exception e) {
+      osOpen=null;
+    }
+
+    TO_PATH=toPath;
+    CHANNEL_OPEN=channelOpen;
+    READ_ONLY=readOnly;
+    OS_OPEN=osOpen;
+    OS_FSYNC=osFsync;
+    OS_CLOSE=osClose;
+    O_RDONLY=rdOnly;
+  }
+
+  /**
+   * @return true if this platform offers a way to sync a
+   * directory
+   */
+  static boolean isSupported() {
+    return(CHANNEL_OPEN!=null || OS_OPEN!=null);
+  }
+
+  /**
+   * Syncs the directory, as best it can. Some filesystems
+   * refuse to sync directories, so failure is not an error.
+   *
+   * @param dir the directory to sync
+   * @return true if the directory was synced
+   */
+  static boolean sync(File dir) {
+    if (CHANNEL_OPEN!=null) {
+      try {
+        FileChannel channel=
+          (FileChannel)CHANNEL_OPEN.invoke(null, TO_PATH.invoke(dir),
+            READ_ONLY);
+
+        try {
+          channel.force(true);
+
+          return(true);
+        }
+        finally {
+          channel.close();
+        }
+      }
+      catch (Exception e) {
+        // try android.system.Os, if we have it
+      }
+    }
+
+    if (OS_OPEN!=null) {
+      try {
+        Object fd=OS_OPEN.invoke(null, dir.getPath(), O_RDONLY, 0);
+
+        try {
+          OS_FSYNC.invoke(null, fd);
+
+          return(true);
+        }
+        finally {
+          OS_CLOSE.invoke(null, fd);
+        }
+      }
+      catch (Exception e) {
+        // nothing left to try
+      }
+    }
+
+    return(false);
+  }
+}
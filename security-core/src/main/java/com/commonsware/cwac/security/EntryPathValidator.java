@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Maps archive entry names to paths inside a destination
+ * directory, refusing any name that would land outside of it.
+ * The destination directory is canonicalized once; entry
+ * names are then checked purely as strings, with no
+ * filesystem calls per entry.
+ *
+ * That is only safe because the destination directory starts
+ * out empty and we never create symlinks in it, so nothing
+ * inside it can redirect a path elsewhere. Callers that write
+ * into a directory with existing contents need to check the
+ * canonical paths of what they write.
+ *
+ * Instances also remember which directories they have
+ * created, so mkdirs() only touches the filesystem for new
+ * directories. Instances are not thread-safe.
+ */
+final class EntryPathValidator {
+  private final String root;
+  private final Node createdDirs=new Node();
+
+  EntryPathValidator(File destDir) throws IOException {
+    root=destDir.getCanonicalPath();
+  }
+
+  /**
+   * @return the entry name with separators normalized to
+   * '/' and with no empty, "." or ".." segments, or the empty
+   * string if the name refers to the destination directory
+   * itself
+   * @throws IllegalStateException if the name is absolute,
+   * contains a NUL, or climbs out of the destination directory
+   */
+  static String normalize(String entryName) {
+    if (entryName.indexOf('\0')>=0) {
+      throw new IllegalStateException("ZIP entry name contains a NUL");
+    }
+
+    String name=entryName.replace('\\', '/');
+
+    if (name.startsWith("/") ||
+      (name.length()>=2 && name.charAt(1)==':' &&
+        Character.isLetter(name.charAt(0)))) {
+      throw new IllegalStateException("ZIP entry has an absolute path");
+    }
+
+    ArrayList<String> segments=new ArrayList<String>();
+    int start=0;
+
+    while (start<=name.length()) {
+      int end=name.indexOf('/', start);
+
+      if (end<0) {
+        end=name.length();
+      }
+
+      String segment=name.substring(start, end);
+
+      if (segment.equals("..")) {
+        if (segments.isEmpty()) {
+          throw new IllegalStateException("ZIP entry tried to write outside destination directory");
+        }
+
+        segments.remove(segments.size()-1);
+      }
+      else if (segment.length()>0 && !segment.equals(".")) {
+        segments.add(segment);
+      }
+
+      start=end+1;
+    }
+
+    StringBuilder result=new StringBuilder(name.length());
+
+    for (String segment : segments) {
+      if (result.length()>0) {
+        result.append('/');
+      }
+
+      result.append(segment);
+    }
+
+    return(result.toString());
+  }
+
+  /**
+   * Creates the directory for an entry, plus its parents,
+   * skipping any that this validator already created.
+   *
+   * Finding which directories already exist is one pass over
+   * the name, through a trie of the directories created so
+   * far. Each directory that has to be created still needs
+   * its full path, as File cannot create one relative to its
+   * parent, so a chain of new directories costs time
+   * quadratic in the length of the name. The filesystem
+   * bounds that, as mkdir() fails once the path passes
+   * PATH_MAX.
+   *
+   * @param normalized a name returned by normalize()
+   */
+  void mkdirs(String normalized) throws IOException {
+    Node node=createdDirs;
+    int start=0;
+
+    while (start<normalized.length()) {
+      int slash=normalized.indexOf('/', start);
+      int end=slash<0 ? normalized.length() : slash;
+      String segment=normalized.substring(start, end);
+      Node child=node.children==null ? null : node.children.get(segment);
+
+      if (child==null) {
+        File dir=new File(toPath(normalized.substring(0, end)));
+
+        if (!dir.mkdir() && !dir.isDirectory()) {
+          throw new IOException("Could not create directory "+dir);
+        }
+
+        child=new Node();
+
+        if (node.children==null) {
+          node.children=new HashMap<String, Node>();
+        }
+
+        node.children.put(segment, child);
+      }
+
+      node=child;
+      start=end+1;
+    }
+  }
+
+  /**
+   * Creates the parent directory for a file entry, plus its
+   * parents, skipping any that this validator already created.
+   *
+   * @param normalized a name returned by normalize()
+   */
+  void mkdirsForFile(String normalized) throws IOException {
+    int slash=normalized.lastIndexOf('/');
+
+    mkdirs(slash<0 ? "" : normalized.substring(0, slash));
+  }
+
+  String toPath(String normalized) {
+    if (normalized.length()==0) {
+      return(root);
+    }
+
+    if (File.separatorChar!='/') {
+      normalized=normalized.replace('/', File.separatorChar);
+    }
+
+    return(root+File.separator+normalized);
+  }
+
+  // a directory that we created, with the ones that we
+  // created inside of it, by name
+
+  private static class Node {
+    HashMap<String, Node> children;
+  }
+}
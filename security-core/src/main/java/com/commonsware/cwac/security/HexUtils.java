@@ -0,0 +1,39 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+public class HexUtils {
+  // based on https://stackoverflow.com/a/2197650/115145
+
+  public static String toHexStringWithColons(byte[] bytes) {
+    char[] hexArray=
+        { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B',
+            'C', 'D', 'E', 'F' };
+    char[] hexChars=new char[(bytes.length * 3) - 1];
+    int v;
+
+    for (int j=0; j < bytes.length; j++) {
+      v=bytes[j] & 0xFF;
+      hexChars[j * 3]=hexArray[v / 16];
+      hexChars[j * 3 + 1]=hexArray[v % 16];
+
+      if (j < bytes.length - 1) {
+        hexChars[j * 3 + 2]=':';
+      }
+    }
+
+    return new String(hexChars);
+  }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unzips the files of an archive into memory, for
+ * ZipUtils.unzipToMemory(), applying the same checks and
+ * limits as unzipping to a directory, plus a cap on the
+ * total bytes held.
+ *
+ * From a File, the sizes are known up front, so all of the
+ * contents go into one array, allocated once, with each file
+ * getting a slice of it. From a stream, each file gets its
+ * own array, sized by the entry when the entry says, and
+ * otherwise grown in steps that are checked against maxBytes
+ * before they are allocated.
+ */
+final class MemoryUnzipper {
+  private static final int BUFFER_SIZE=16384;
+
+  static Map<String, ByteBuffer> unzip(ZipIndex zip, ZipUtils.Options options,
+                                       int maxBytes) throws IOException {
+    long total=0;
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      if (!entry.isDirectory()) {
+        // compared before adding, so a huge ZIP64 size cannot
+        // wrap the sum around
+
+        if (entry.size>maxBytes-total) {
+          throw new IllegalStateException("Too much output from ZIP");
+        }
+
+        total+=entry.size;
+      }
+    }
+
+    final LinkedHashMap<String, ByteBuffer> result=
+      new LinkedHashMap<String, ByteBuffer>();
+    final byte[] contents=new byte[(int)total];
+    final byte[] data=new byte[BUFFER_SIZE];
+    final ZipQuota quota=
+      new ZipQuota(options, Math.min(options.maxSize, maxBytes));
+    final AtomicBoolean aborted=new AtomicBoolean(false);
+    final UnzipMetrics metrics=ZipUtils.createMetrics(zip, options);
+    final DigestManifest manifest=DigestManifest.create(options);
+    int offset=0;
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      if (!entry.isDirectory()) {
+        String name=EntryPathValidator.normalize(entry.name);
+        ByteBuffer slice=
+          ByteBuffer.wrap(contents, offset, (int)entry.size).slice();
+        InputStream in=zip.open(entry);
+
+        ZipUtils.requireFileName(name);
+
+        try {
+          ZipUtils.copyEntry(in, name,
+            new BufferOutputStream(slice.duplicate()), data, quota,
+            (ZipQuota.Counter)in, aborted, metrics, manifest);
+        }
+        finally {
+          in.close();
+        }
+
+        if (metrics!=null) {
+          metrics.entryDone(entry.compressedSize);
+        }
+
+        result.put(name, slice.asReadOnlyBuffer());
+        offset+=entry.size;
+      }
+    }
+
+    if (metrics!=null) {
+      metrics.complete();
+    }
+
+    return(Collections.unmodifiableMap(result));
+  }
+
+  static Map<String, ByteBuffer> unzip(InputStream zipStream,
+                                       ZipUtils.Options options,
+                                       int maxBytes) throws IOException {
+    final LinkedHashMap<String, ByteBuffer> result=
+      new LinkedHashMap<String, ByteBuffer>();
+    final ZipUtils.CountingInputStream counter=
+      new ZipUtils.CountingInputStream(new BufferedInputStream(zipStream));
+    final ZipInputStream zis=new ZipInputStream(counter);
+    final byte[] data=new byte[BUFFER_SIZE];
+    final ZipQuota quota=
+      new ZipQuota(options, Math.min(options.maxSize, maxBytes));
+    final ZipQuota skipped=new ZipQuota(options);
+    final AtomicBoolean aborted=new AtomicBoolean(false);
+    final UnzipMetrics metrics=UnzipMetrics.create(options, -1, -1);
+    final DigestManifest manifest=DigestManifest.create(options);
+    ZipEntry entry;
+    int entries=0;
+    long held=0;
+
+    try {
+      while ((entry=zis.getNextEntry())!=null) {
+        final String name=EntryPathValidator.normalize(entry.getName());
+
+        entries++;
+
+        if (entries>options.maxEntries) {
+          throw new IllegalStateException("Too many entries in ZIP");
+        }
+
+        // skipped entries are not held, so their bytes go
+        // against the limits from the Options, not maxBytes
+
+        if (options.filter!=null && !options.filter.accept(name)) {
+          counter.startEntry();
+          ZipUtils.skipEntry(zis, name, data, skipped, counter, aborted);
+          zis.closeEntry();
+          continue;
+        }
+
+        quota.checkName(name);
+
+        if (!entry.isDirectory()) {
+          ZipUtils.requireFileName(name);
+
+          if (result.containsKey(name)) {
+            throw new IllegalStateException("Duplicate entry in ZIP: "+name);
+          }
+
+          // a declared size is only a hint here, trusted as far
+          // as the budget goes; the quota and the sink are what
+          // hold the line
+
+          long size=entry.getSize();
+          long available=maxBytes-held;
+          Sink sink=new Sink(size>=0 && size<=available ? (int)size :
+            (int)Math.min(BUFFER_SIZE, available), available);
+
+          counter.startEntry();
+          ZipUtils.copyEntry(zis, name, sink, data, quota, counter, aborted,
+            metrics, manifest);
+
+          if (manifest!=null) {
+            manifest.markSeen(name);
+          }
+
+          if (metrics!=null) {
+            metrics.entryDone(counter.compressedBytes());
+          }
+
+          result.put(name, sink.toBuffer());
+          held+=sink.capacity();
+        }
+
+        zis.closeEntry();
+      }
+    }
+    finally {
+      zis.close();
+    }
+
+    if (manifest!=null) {
+      manifest.checkAllSeen();
+    }
+
+    if (metrics!=null) {
+      metrics.complete();
+    }
+
+    return(Collections.unmodifiableMap(result));
+  }
+
+  private static class BufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    BufferOutputStream(ByteBuffer buffer) {
+      this.buffer=buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      buffer.put(bytes, offset, length);
+    }
+  }
+
+  // a ByteArrayOutputStream that hands over its array, rather
+  // than a copy of it, and that checks each growth step
+  // against the budget before allocating, so its capacity
+  // (not just what was written) never passes what is
+  // available; doubling unchecked could reach twice that.
+  // The old array is still held while it is copied into the
+  // new one, so the peak during a step is old plus new.
+  // Much spare capacity at the end is trimmed, so it does not
+  // count against the entries that follow.
+
+  static class Sink extends OutputStream {
+    private final long available;
+    private byte[] buf;
+    private int count=0;
+
+    Sink(int size, long available) {
+      this.available=available;
+      buf=new byte[size];
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count+1L);
+      buf[count++]=(byte)b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      ensureCapacity((long)count+length);
+      System.arraycopy(bytes, offset, buf, count, length);
+      count+=length;
+    }
+
+    int capacity() {
+      return(buf.length);
+    }
+
+    ByteBuffer toBuffer() {
+      if (buf.length-count>BUFFER_SIZE) {
+        buf=Arrays.copyOf(buf, count);
+      }
+
+      return(ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer());
+    }
+
+    private void ensureCapacity(long needed) {
+      if (needed>buf.length) {
+        if (needed>available) {
+          throw new IllegalStateException("Too much output from ZIP");
+        }
+
+        long grown=Math.max(Math.max(buf.length*2L, needed), BUFFER_SIZE);
+
+        buf=Arrays.copyOf(buf, (int)Math.min(grown, available));
+      }
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of the contents of a ZIP-style archive,
+ * without unzipping it. The archive is memory-mapped and
+ * checked once, when it is opened, against the same rules
+ * and limits that ZipUtils.unzip() applies. After that,
+ * entries are read straight from the mapping.
+ *
+ * Instances are thread-safe. Close the archive when you are
+ * done with it.
+ */
+public class SafeZipArchive implements Closeable {
+  private static final int CHECK_SIZE=16384;
+  private final ZipIndex zip;
+  private final HashMap<String, ZipIndex.Entry> entries=
+    new HashMap<String, ZipIndex.Entry>();
+  private final List<String> names;
+  private final HashSet<ZipIndex.Entry> checked=
+    new HashSet<ZipIndex.Entry>();
+
+  /**
+   * Opens and checks a ZIP-style archive. This rejects the
+   * same archives that ZipUtils.inspect() does with these
+   * Options: too many entries, too many bytes, too high a
+   * compression ratio, duplicate or overlapping entries, and
+   * names that would escape a destination directory. If an
+   * Options filter is set, only the matching entries are
+   * available. Options that only make sense for unzipping,
+   * such as the thread count, are ignored.
+   *
+   * The archive can be at most 2GB, as that is as much as one
+   * mapping can hold.
+   *
+   * @param zipFile the ZIP archive to open
+   * @param options an Options object with the limits to apply
+   * @return the opened archive
+   * @throws ZipUtils.UnzipException if the archive fails a
+   * check; use getCause() to find out why
+   * @throws IOException if the archive cannot be mapped
+   */
+  public static SafeZipArchive open(File zipFile, ZipUtils.Options options)
+      throws ZipUtils.UnzipException, IOException {
+    ZipIndex zip=ZipUtils.openIndex(zipFile, options);
+
+    try {
+      zip.map();
+
+      return(new SafeZipArchive(zip));
+    }
+    catch (IOException e) {
+      zip.close();
+      throw e;
+    }
+  }
+
+  private SafeZipArchive(ZipIndex zip) {
+    ArrayList<String> fileNames=new ArrayList<String>();
+
+    this.zip=zip;
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      if (!entry.isDirectory()) {
+        String name=EntryPathValidator.normalize(entry.name);
+
+        entries.put(name, entry);
+        fileNames.add(name);
+      }
+    }
+
+    names=Collections.unmodifiableList(fileNames);
+  }
+
+  /**
+   * Closes the archive. ByteBuffers obtained from getBuffer()
+   * remain usable, as the mapping lasts until they are all
+   * garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    zip.close();
+  }
+
+  /**
+   * @return the names of the files in the archive, in archive
+   * order, normalized to relative paths with '/' separators
+   */
+  public List<String> getNames() {
+    return(names);
+  }
+
+  /**
+   * @param name the name of a file in the archive
+   * @return true if the archive contains that file
+   */
+  public boolean contains(String name) {
+    return(find(name)!=null);
+  }
+
+  /**
+   * @param name the name of a file in the archive
+   * @return the uncompressed size of that file, or -1 if the
+   * archive does not contain it
+   */
+  public long getSize(String name) {
+    ZipIndex.Entry entry=find(name);
+
+    return(entry==null ? -1 : entry.size);
+  }
+
+  /**
+   * Opens a stream on the contents of a file in the archive.
+   * The stream throws a ZipException if the contents do not
+   * match the size and CRC-32 that the archive declares.
+   * Close the stream when you are done with it.
+   *
+   * @param name the name of a file in the archive
+   * @return a stream on its uncompressed contents
+   * @throws FileNotFoundException if the archive does not
+   * contain that file
+   */
+  public InputStream openStream(String name) throws IOException {
+    return(zip.open(require(name), false));
+  }
+
+  /**
+   * Returns a read-only ByteBuffer on the contents of a file
+   * in the archive, without copying them, if the file is
+   * stored without compression. For compressed files, use
+   * openStream().
+   *
+   * The first time a given file is requested, its contents
+   * are checked against its CRC-32, and a ZipException is
+   * thrown if they do not match.
+   *
+   * @param name the name of a file in the archive
+   * @return a read-only ByteBuffer on the file's contents,
+   * or null if the file is compressed
+   * @throws FileNotFoundException if the archive does not
+   * contain that file
+   */
+  public ByteBuffer getBuffer(String name) throws IOException {
+    ZipIndex.Entry entry=require(name);
+
+    if (entry.method!=ZipIndex.METHOD_STORED) {
+      return(null);
+    }
+
+    ByteBuffer result=zip.slice(entry);
+
+    if (!isChecked(entry)) {
+      check(entry, result.duplicate());
+    }
+
+    return(result);
+  }
+
+  private ZipIndex.Entry find(String name) {
+    try {
+      return(entries.get(EntryPathValidator.normalize(name)));
+    }
+    catch (IllegalStateException e) {
+      return(null);
+    }
+  }
+
+  private ZipIndex.Entry require(String name) throws FileNotFoundException {
+    ZipIndex.Entry entry=find(name);
+
+    if (entry==null) {
+      throw new FileNotFoundException("No such entry in ZIP: "+name);
+    }
+
+    return(entry);
+  }
+
+  private boolean isChecked(ZipIndex.Entry entry) {
+    synchronized(checked) {
+      return(checked.contains(entry));
+    }
+  }
+
+  private void check(ZipIndex.Entry entry, ByteBuffer data)
+    throws ZipException {
+    CRC32 crc=new CRC32();
+    byte[] chunk=new byte[Math.min(CHECK_SIZE, data.remaining())];
+
+    while (data.hasRemaining()) {
+      int count=Math.min(chunk.length, data.remaining());
+
+      data.get(chunk, 0, count);
+      crc.update(chunk, 0, count);
+    }
+
+    if (crc.getValue()!=entry.crc) {
+      throw new ZipException("CRC mismatch: "+entry.name);
+    }
+
+    synchronized(checked) {
+      checked.add(entry);
+    }
+  }
+}
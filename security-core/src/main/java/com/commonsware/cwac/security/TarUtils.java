@@ -0,0 +1,775 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Utilities for safely extracting tar archives, optionally
+ * gzip-compressed, with the same protections as ZipUtils:
+ * entries cannot land outside the destination directory, the
+ * limits in ZipUtils.Options apply, and a failed extraction
+ * is rolled back.
+ */
+public class TarUtils {
+  private static final int BLOCK_SIZE=512;
+  private static final int BUFFER_SIZE=16384;
+  private static final int MAX_META_SIZE=65536;
+  private static final Charset UTF8=Charset.forName("UTF-8");
+  private static final Method OS_SYMLINK;
+  private static final Method FILES_CREATE_SYMBOLIC_LINK;
+  private static final Method TO_PATH;
+  private static final Object NO_ATTRIBUTES;
+
+  // android.system.Os is API 21+, java.nio.file is API 26+
+  // (and any desktop JVM)
+
+  static {
+    Method osSymlink=null;
+    Method createSymbolicLink=null;
+    Method toPath=null;
+    Object noAttributes=null;
+
+    try {
+      osSymlink=Class.forName("android.system.Os")
+        .getMethod("symlink", String.class, String.class);
+    }
+    catch (Exception e) {
+      osSymlink=null;
+    }
+
+    try {
+      noAttributes=Array.newInstance(
+        Class.forName("java.nio.file.attribute.FileAttribute"), 0);
+      toPath=File.class.getMethod("toPath");
+      createSymbolicLink=Class.forName("java.nio.file.Files")
+        .getMethod("createSymbolicLink", toPath.getReturnType(),
+          toPath.getReturnType(), noAttributes.getClass());
+    }
+    catch (Exception e) {
+      createSymbolicLink=null;
+    }
+
+    OS_SYMLINK=osSymlink;
+    FILES_CREATE_SYMBOLIC_LINK=createSymbolicLink;
+    TO_PATH=toPath;
+    NO_ATTRIBUTES=noAttributes;
+  }
+
+  /**
+   * Extracts a tar archive, or a gzip-compressed one (detected
+   * from its contents, not its name), to the designated
+   * directory. See the InputStream flavor of untar() for the
+   * details.
+   *
+   * @param tarFile the tar archive to extract
+   * @param destDir the directory to extract the contents to
+   * @param options an Options object describing how to extract
+   * @throws ZipUtils.UnzipException if something goes haywire
+   */
+  public static void untar(File tarFile, File destDir,
+                           ZipUtils.Options options)
+      throws ZipUtils.UnzipException, IOException {
+    untar(new FileInputStream(tarFile), destDir, options);
+  }
+
+  /**
+   * Extracts a tar archive, or a gzip-compressed one (detected
+   * from its contents), read from the supplied stream, to the
+   * designated directory, in a single streaming pass. The same
+   * rules apply as with the InputStream flavor of
+   * ZipUtils.unzip(), including the limits, filter, manifest,
+   * listener, durability, and staged() from the Options, and
+   * the rollback if an UnzipException is thrown.
+   *
+   * Directories, regular files, symlinks, and hard links are
+   * extracted. Symlinks must be relative and must resolve to
+   * somewhere inside the destination directory; they are
+   * created after everything else, so nothing is ever written
+   * through one. Hard links must refer to a file extracted
+   * earlier from the same archive; where the filesystem does
+   * not allow hard links, the file is copied. Any other kind
+   * of entry, such as a device, fails the extraction.
+   *
+   * The stream is closed by the time this method returns.
+   *
+   * @param tarStream stream containing the tar archive
+   * @param destDir the directory to extract the contents to
+   * @param options an Options object describing how to extract
+   * @throws ZipUtils.UnzipException if something goes haywire
+   * @throws IOException if the destination directory exists
+   * and is not empty (and you are not using staged())
+   */
+  public static void untar(InputStream tarStream, File destDir,
+                           ZipUtils.Options options)
+      throws ZipUtils.UnzipException, IOException {
+    File target=destDir;
+
+    try {
+      if (options.staged) {
+        target=ZipUtils.createStagingDir(destDir);
+      }
+      else {
+        ZipUtils.prepareDestDir(destDir);
+      }
+    }
+    catch (IOException e) {
+      tarStream.close();
+      throw e;
+    }
+
+    try {
+      new Extraction(tarStream, target, options).run();
+    }
+    catch (Throwable t) {
+      try {
+        tarStream.close(); // in case we failed before reading it
+      }
+      catch (IOException e) {
+        // we are already failing, so ignore this one
+      }
+
+      ZipUtils.rollback(target, options);
+
+      throw new ZipUtils.UnzipException(
+        "Problem in untar operation, rolling back", t);
+    }
+
+    if (options.staged) {
+      ZipUtils.commitStagingDir(target, destDir, options);
+    }
+  }
+
+  private static class Extraction {
+    private final ZipUtils.CountingInputStream counter;
+    private final InputStream in;
+    private final File destDir;
+    private final ZipUtils.Options options;
+    private final EntryPathValidator validator;
+    private final ZipQuota quota;
+    private final UnzipMetrics metrics;
+    private final DigestManifest manifest;
+    private final AtomicBoolean aborted=new AtomicBoolean(false);
+    private final byte[] header=new byte[BLOCK_SIZE];
+    private final byte[] data=new byte[BUFFER_SIZE];
+    private final ArrayList<File> written=new ArrayList<File>();
+    private final HashSet<String> files=new HashSet<String>();
+    private final HashSet<String> links=new HashSet<String>();
+    private final ArrayList<String[]> symlinks=new ArrayList<String[]>();
+    private final boolean compressed;
+
+    Extraction(InputStream tarStream, File destDir, ZipUtils.Options options)
+      throws IOException {
+      BufferedInputStream buffered=new BufferedInputStream(tarStream);
+
+      buffered.mark(2);
+
+      int first=buffered.read();
+      int second=buffered.read();
+
+      buffered.reset();
+      compressed=(first==0x1f && second==0x8b);
+      counter=new ZipUtils.CountingInputStream(buffered);
+      in=compressed ?
+        new BufferedInputStream(new GZIPInputStream(counter, BUFFER_SIZE)) :
+        counter;
+      this.destDir=destDir;
+      this.options=options;
+      validator=new EntryPathValidator(destDir);
+      quota=new ZipQuota(options);
+      metrics=UnzipMetrics.create(options, -1, -1);
+      manifest=DigestManifest.create(options);
+    }
+
+    void run() throws IOException {
+      try {
+        String longName=null;
+        String longLink=null;
+        String paxPath=null;
+        String paxLink=null;
+        long paxSize=-1;
+        int entries=0;
+
+        while (readHeader()) {
+          char type=(char)header[156];
+          long size=parseNumber(124, 12);
+
+          if (type=='L' || type=='K' || type=='x' || type=='g') {
+            byte[] meta=readMeta(size);
+
+            if (type=='L') {
+              longName=cString(meta, 0, meta.length);
+            }
+            else if (type=='K') {
+              longLink=cString(meta, 0, meta.length);
+            }
+            else if (type=='x') {
+              String[] pax=parsePax(meta);
+
+              paxPath=pax[0];
+              paxLink=pax[1];
+
+              if (pax[2]!=null) {
+                paxSize=parseDecimal(pax[2]);
+              }
+            }
+            else if (type=='g') {
+              // a global header applies to every entry after it,
+              // where a path, linkpath, or size makes no sense,
+              // so those are ignored, as is everything else in
+              // it; it still has to be well-formed
+
+              parsePax(meta);
+            }
+
+            continue;
+          }
+
+          String rawName=paxPath!=null ? paxPath :
+            (longName!=null ? longName : headerName());
+          String linkName=paxLink!=null ? paxLink :
+            (longLink!=null ? longLink : cString(header, 157, 100));
+
+          if (paxSize>=0) {
+            size=paxSize;
+          }
+
+          longName=longLink=paxPath=paxLink=null;
+          paxSize=-1;
+
+          if (++entries>options.maxEntries) {
+            throw new IllegalStateException("Too many entries in tar");
+          }
+
+          extract(type, rawName, linkName, size);
+        }
+
+        createSymlinks();
+      }
+      finally {
+        in.close();
+      }
+
+      if (manifest!=null) {
+        manifest.checkAllSeen();
+      }
+
+      ZipUtils.finishWrites(destDir, written, options, metrics);
+
+      if (metrics!=null) {
+        metrics.complete();
+      }
+    }
+
+    private void extract(char type, String rawName, String linkName,
+                         long size) throws IOException {
+      String name=EntryPathValidator.normalize(rawName);
+      boolean selected=options.filter==null || options.filter.accept(name);
+
+      boolean regular=(type=='0' || type=='\0' || type=='7');
+
+      if (!selected) {
+        skipData(regular ? size : 0);
+
+        return;
+      }
+
+      quota.checkName(name);
+
+      if (links.contains(name)) {
+        throw new IllegalStateException("Duplicate entry in tar: "+name);
+      }
+
+      if (type=='5') {
+        validator.mkdirs(name);
+      }
+      else if (regular) {
+        ZipUtils.requireFileName(name);
+        quota.checkDeclared(name, size, size);
+        validator.mkdirsForFile(name);
+
+        String path=validator.toPath(name);
+
+        // a hard link may share this file's contents
+
+        if (files.contains(name)) {
+          new File(path).delete();
+        }
+
+        writeFile(name, path, size);
+        files.add(name);
+      }
+      else if (type=='1') {
+        hardLink(name, linkName);
+      }
+      else if (type=='2') {
+        ZipUtils.requireFileName(name);
+        checkSymlinkTarget(name, linkName);
+
+        if (files.contains(name)) {
+          throw new IllegalStateException("Duplicate entry in tar: "+name);
+        }
+
+        links.add(name);
+        symlinks.add(new String[] {name, linkName});
+      }
+      else {
+        throw new IllegalStateException("Unsupported tar entry type '"+
+          type+"': "+name);
+      }
+
+      skip(regular ? padding(size) : 0);
+    }
+
+    private void writeFile(String name, String path, long size)
+      throws IOException {
+      long start=counter.compressedBytes();
+      FileOutputStream fos=new FileOutputStream(path);
+
+      // a gzip stream is read ahead in chunks, so it is the
+      // compressed bytes read so far, across all entries, that
+      // each entry's size gets compared to
+
+      try {
+        ZipUtils.copyEntry(new BoundedStream(in, size), name, fos, data,
+          quota, compressed ? counter : null, aborted, metrics, manifest);
+
+        if (options.durability==ZipUtils.Durability.PER_ENTRY) {
+          ZipUtils.sync(fos.getFD(), metrics);
+        }
+      }
+      finally {
+        fos.close();
+      }
+
+      if (manifest!=null) {
+        manifest.markSeen(name);
+      }
+
+      if (options.durability==ZipUtils.Durability.BATCH) {
+        written.add(new File(path));
+      }
+
+      if (metrics!=null) {
+        metrics.entryDone(counter.compressedBytes()-start);
+      }
+    }
+
+    // hard links name an archive member, which has to be a
+    // file that we already extracted
+
+    private void hardLink(String name, String linkName) throws IOException {
+      String target=EntryPathValidator.normalize(linkName);
+
+      ZipUtils.requireFileName(name);
+
+      if (!files.contains(target)) {
+        if (options.filter!=null && !options.filter.accept(target)) {
+          return;
+        }
+
+        throw new IllegalStateException(
+          "Tar hard link does not refer to an extracted file: "+name);
+      }
+
+      if (manifest!=null) {
+        if (!MessageDigest.isEqual(manifest.expected(name),
+          manifest.expected(target))) {
+          throw new IllegalStateException(
+            "ZIP entry does not match manifest: "+name);
+        }
+
+        manifest.markSeen(name);
+      }
+
+      File original=new File(validator.toPath(target));
+
+      validator.mkdirsForFile(name);
+      quota.reserve(name, original.length());
+      ZipDedup.share(original, new File(validator.toPath(name)), options,
+        metrics);
+      files.add(name);
+
+      if (options.durability==ZipUtils.Durability.BATCH) {
+        written.add(new File(validator.toPath(name)));
+      }
+
+      if (metrics!=null) {
+        metrics.entryDone(0);
+      }
+    }
+
+    // resolves the target as a path relative to the link's
+    // own directory, purely as strings; the canonical check
+    // after creation catches links that chain through others
+
+    private void checkSymlinkTarget(String name, String linkName) {
+      if (linkName.length()==0 || linkName.startsWith("/") ||
+        linkName.startsWith("\\") ||
+        (linkName.length()>=2 && linkName.charAt(1)==':')) {
+        throw new IllegalStateException(
+          "Tar symlink points outside destination directory: "+name);
+      }
+
+      int slash=name.lastIndexOf('/');
+      String parent=slash<0 ? "" : name.substring(0, slash+1);
+
+      try {
+        EntryPathValidator.normalize(parent+linkName);
+      }
+      catch (IllegalStateException e) {
+        throw new IllegalStateException(
+          "Tar symlink points outside destination directory: "+name);
+      }
+    }
+
+    private void createSymlinks() throws IOException {
+      String root=destDir.getCanonicalPath();
+
+      for (String[] symlink : symlinks) {
+        String name=symlink[0];
+        String path=validator.toPath(name);
+        File link=new File(path);
+
+        // nothing on the way to the link may be a link itself
+
+        ZipUtils.requireUnaliased(path);
+        validator.mkdirsForFile(name);
+
+        if (link.exists()) {
+          throw new IllegalStateException("Duplicate entry in tar: "+name);
+        }
+
+        symlink(symlink[1], link);
+      }
+
+      for (String[] symlink : symlinks) {
+        String resolved=
+          new File(validator.toPath(symlink[0])).getCanonicalPath();
+
+        if (!resolved.equals(root) &&
+          !resolved.startsWith(root+File.separator)) {
+          throw new IllegalStateException(
+            "Tar symlink points outside destination directory: "+
+              symlink[0]);
+        }
+      }
+    }
+
+    private boolean readHeader() throws IOException {
+      if (!readBlock(header)) {
+        return(false);
+      }
+
+      boolean empty=true;
+
+      for (byte b : header) {
+        if (b!=0) {
+          empty=false;
+          break;
+        }
+      }
+
+      if (empty) {
+        return(false); // end-of-archive marker
+      }
+
+      long expected=parseNumber(148, 8);
+      long unsigned=0;
+      long signed=0;
+
+      for (int i=0; i<BLOCK_SIZE; i++) {
+        int b=(i>=148 && i<156) ? ' ' : header[i];
+
+        unsigned+=b & 0xFF;
+        signed+=b;
+      }
+
+      if (expected!=unsigned && expected!=signed) {
+        throw new IOException("Bad tar header checksum");
+      }
+
+      return(true);
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+      int done=0;
+
+      while (done<block.length) {
+        int count=in.read(block, done, block.length-done);
+
+        if (count<0) {
+          if (done==0) {
+            return(false);
+          }
+
+          throw new EOFException("Truncated tar archive");
+        }
+
+        done+=count;
+      }
+
+      return(true);
+    }
+
+    private byte[] readMeta(long size) throws IOException {
+      if (size<0 || size>MAX_META_SIZE) {
+        throw new IllegalStateException("Tar header too long");
+      }
+
+      byte[] result=new byte[(int)size];
+      int done=0;
+
+      while (done<result.length) {
+        int count=in.read(result, done, result.length-done);
+
+        if (count<0) {
+          throw new EOFException("Truncated tar archive");
+        }
+
+        done+=count;
+      }
+
+      skip(padding(size));
+
+      return(result);
+    }
+
+    // only regular files have data; for directories and links,
+    // the size is not a data length
+
+    private void skipData(long size) throws IOException {
+      skip(size+padding(size));
+    }
+
+    private void skip(long count) throws IOException {
+      while (count>0) {
+        int read=in.read(data, 0, (int)Math.min(data.length, count));
+
+        if (read<0) {
+          throw new EOFException("Truncated tar archive");
+        }
+
+        count-=read;
+      }
+    }
+
+    private String headerName() {
+      String name=cString(header, 0, 100);
+
+      if (cString(header, 257, 5).equals("ustar")) {
+        String prefix=cString(header, 345, 155);
+
+        if (prefix.length()>0) {
+          name=prefix+"/"+name;
+        }
+      }
+
+      return(name);
+    }
+
+    // octal, or base-256 for values that do not fit
+
+    private long parseNumber(int offset, int length) throws IOException {
+      if ((header[offset] & 0x80)!=0) {
+        if ((header[offset] & 0x40)!=0) {
+          throw new IOException("Negative number in tar header");
+        }
+
+        long result=header[offset] & 0x3F;
+
+        for (int i=1; i<length; i++) {
+          if ((result>>>55)!=0) {
+            throw new IOException("Number too big in tar header");
+          }
+
+          result=(result<<8) | (header[offset+i] & 0xFF);
+        }
+
+        return(result);
+      }
+
+      int i=offset;
+      int end=offset+length;
+      long result=0;
+
+      while (i<end && (header[i]==' ' || header[i]==0)) {
+        i++;
+      }
+
+      while (i<end && header[i]>='0' && header[i]<='7') {
+        result=(result<<3) | (header[i]-'0');
+        i++;
+      }
+
+      if (i<end && header[i]!=' ' && header[i]!=0) {
+        throw new IOException("Bad number in tar header");
+      }
+
+      return(result);
+    }
+
+    // pax records are "<length> <key>=<value>\n"; we only need
+    // the path, the link target, and the size
+
+    private String[] parsePax(byte[] meta) throws IOException {
+      String[] result=new String[3];
+      int start=0;
+
+      while (start<meta.length) {
+        int space=start;
+
+        while (space<meta.length && meta[space]!=' ') {
+          space++;
+        }
+
+        int length=(int)parseDecimal(new String(meta, start, space-start,
+          UTF8));
+        int end=start+length;
+
+        if (space>=end-1 || end>meta.length || meta[end-1]!='\n') {
+          throw new IOException("Bad pax header");
+        }
+
+        String record=new String(meta, space+1, end-space-2, UTF8);
+        int equals=record.indexOf('=');
+
+        if (equals>0) {
+          String key=record.substring(0, equals);
+          String value=record.substring(equals+1);
+
+          if (key.equals("path")) {
+            result[0]=value;
+          }
+          else if (key.equals("linkpath")) {
+            result[1]=value;
+          }
+          else if (key.equals("size")) {
+            result[2]=value;
+          }
+        }
+
+        start=end;
+      }
+
+      return(result);
+    }
+  }
+
+  private static long parseDecimal(String value) throws IOException {
+    try {
+      long result=Long.parseLong(value.trim());
+
+      if (result<0) {
+        throw new IOException("Bad number in pax header: "+value);
+      }
+
+      return(result);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Bad number in pax header: "+value);
+    }
+  }
+
+  private static String cString(byte[] bytes, int offset, int length) {
+    int end=offset;
+
+    while (end<offset+length && bytes[end]!=0) {
+      end++;
+    }
+
+    return(new String(bytes, offset, end-offset, UTF8));
+  }
+
+  private static long padding(long size) {
+    return((BLOCK_SIZE-(size%BLOCK_SIZE))%BLOCK_SIZE);
+  }
+
+  private static void symlink(String target, File link) throws IOException {
+    try {
+      if (OS_SYMLINK!=null) {
+        OS_SYMLINK.invoke(null, target, link.getPath());
+
+        return;
+      }
+
+      if (FILES_CREATE_SYMBOLIC_LINK!=null) {
+        FILES_CREATE_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(link),
+          TO_PATH.invoke(new File(target)), NO_ATTRIBUTES);
+
+        return;
+      }
+    }
+    catch (Exception e) {
+      throw new IOException("Could not create symlink "+link, e);
+    }
+
+    throw new IOException("Symlinks are not supported on this device: "+
+      link);
+  }
+
+  /**
+   * Reads at most the given number of bytes from the tar
+   * stream: the contents of one entry.
+   */
+  private static class BoundedStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    BoundedStream(InputStream in, long size) {
+      this.in=in;
+      this.remaining=size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one=new byte[1];
+
+      return(read(one, 0, 1)<0 ? -1 : one[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+      throws IOException {
+      if (remaining<=0) {
+        return(-1);
+      }
+
+      int count=in.read(buffer, offset, (int)Math.min(length, remaining));
+
+      if (count<0) {
+        throw new EOFException("Truncated tar archive");
+      }
+
+      remaining-=count;
+
+      return(count);
+    }
+  }
+}
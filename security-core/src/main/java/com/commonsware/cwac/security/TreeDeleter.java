@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes a directory tree for ZipUtils.delete(), using an
+ * explicit stack rather than recursion, so a deep tree cannot
+ * overflow the thread's stack. Symlinks are deleted, never
+ * followed, so a link in the tree cannot lead the delete out
+ * of it.
+ *
+ * With more than one thread, the top of the tree is split
+ * into subtrees, which are deleted in parallel, then the
+ * directories above them are deleted.
+ */
+final class TreeDeleter {
+  private static final int CHECK_EVERY=64;
+  private static final int MAX_RELATIVE_PATH=1024;
+  private final ZipUtils.DeleteListener listener;
+  private final long intervalNanos;
+  private final AtomicInteger deleted=new AtomicInteger(0);
+  private final AtomicLong lastReport=new AtomicLong(System.nanoTime());
+  private final AtomicBoolean failed=new AtomicBoolean(false);
+  private final AtomicInteger moved=new AtomicInteger(0);
+
+  static boolean delete(File f, ZipUtils.DeleteListener listener,
+                        int threadCount) {
+    return(new TreeDeleter(listener).run(f, threadCount));
+  }
+
+  private TreeDeleter(ZipUtils.DeleteListener listener) {
+    this.listener=listener;
+    this.intervalNanos=ZipUtils.DEFAULT_PROGRESS_INTERVAL*1000000L;
+  }
+
+  private boolean run(File root, int threadCount) {
+    // as with File.delete(), there being nothing to delete is
+    // a failure; delete() still unlinks a dangling symlink
+
+    if (!root.exists()) {
+      return(root.delete());
+    }
+
+    if (threadCount<=1) {
+      deleteTree(root);
+    }
+    else {
+      deleteInParallel(root, threadCount);
+    }
+
+    if (listener!=null) {
+      synchronized(this) {
+        listener.onProgress(deleted.get());
+      }
+    }
+
+    return(!failed.get());
+  }
+
+  // unlink() removes a file, a symlink, or an empty directory,
+  // so it is tried first; only a real directory with contents
+  // gets listed, and is revisited once those are gone
+
+  private void deleteTree(File root) {
+    ArrayList<File> stack=new ArrayList<File>();
+    ArrayList<Boolean> listed=new ArrayList<Boolean>();
+
+    stack.add(root);
+    listed.add(Boolean.FALSE);
+
+    while (!stack.isEmpty()) {
+      int top=stack.size()-1;
+      File f=stack.get(top);
+
+      if (tryDelete(f)) {
+        stack.remove(top);
+        listed.remove(top);
+      }
+      else if (listed.get(top) || !expand(root, f, stack)) {
+        stack.remove(top);
+        listed.remove(top);
+
+        if (f.exists()) {
+          failed.set(true);
+        }
+      }
+      else {
+        listed.set(top, Boolean.TRUE);
+
+        while (listed.size()<stack.size()) {
+          listed.add(Boolean.FALSE);
+        }
+      }
+    }
+  }
+
+  private void deleteInParallel(File root, int threadCount) {
+    ArrayList<File> frontier=new ArrayList<File>();
+    ArrayList<File> above=new ArrayList<File>();
+    int wanted=threadCount*4;
+
+    frontier.add(root);
+
+    // widen the frontier, breadth-first, until there is
+    // enough work to share out
+
+    while (frontier.size()<wanted) {
+      ArrayList<File> next=new ArrayList<File>();
+      boolean expanded=false;
+
+      for (File f : frontier) {
+        if (tryDelete(f)) {
+          continue;
+        }
+
+        if (expand(root, f, next)) {
+          above.add(f);
+          expanded=true;
+        }
+        else if (f.exists()) {
+          failed.set(true);
+        }
+      }
+
+      frontier=next;
+
+      if (!expanded) {
+        break;
+      }
+    }
+
+    if (!frontier.isEmpty()) {
+      ExecutorService pool=new ThreadPoolExecutor(threadCount, threadCount,
+        0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+      ArrayList<Future<?>> tasks=new ArrayList<Future<?>>();
+
+      try {
+        for (final File f : frontier) {
+          tasks.add(pool.submit(new Runnable() {
+            @Override
+            public void run() {
+              deleteTree(f);
+            }
+          }));
+        }
+
+        for (Future<?> task : tasks) {
+          task.get();
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.set(true);
+      }
+      catch (ExecutionException e) {
+        failed.set(true);
+      }
+      finally {
+        pool.shutdownNow();
+      }
+    }
+
+    for (int i=above.size()-1; i>=0; i--) {
+      File dir=above.get(i);
+
+      if (!tryDelete(dir) && dir.exists()) {
+        failed.set(true);
+      }
+    }
+  }
+
+  private boolean tryDelete(File f) {
+    if (!f.delete()) {
+      return(false);
+    }
+
+    int count=deleted.incrementAndGet();
+
+    if (listener!=null && count%CHECK_EVERY==0) {
+      maybeReport(count);
+    }
+
+    return(true);
+  }
+
+  // a symlink would have been unlinked by tryDelete(), so one
+  // that is still here (say, for lack of permission) is left
+  // alone rather than listed through
+
+  private boolean expand(File root, File f, ArrayList<File> into) {
+    try {
+      if (!f.isDirectory() || ZipUtils.isSymlink(f)) {
+        return(false);
+      }
+    }
+    catch (IOException e) {
+      return(false);
+    }
+
+    File[] children=f.listFiles();
+
+    if (children==null) {
+      return(false);
+    }
+
+    for (File child : children) {
+      into.add(shorten(root, child));
+    }
+
+    return(true);
+  }
+
+  // File only offers absolute paths, and a tree can be deeper
+  // than PATH_MAX allows those to reach, say after being
+  // renamed aside to a longer name, so deep subdirectories
+  // are moved up to the root before being listed. They are
+  // deleted along with everything else, but if the delete
+  // fails, any that could not be emptied stay where they were
+  // moved to, as the way back down is too long to name
+
+  private File shorten(File root, File f) {
+    if (f.getPath().length()-root.getPath().length()<=MAX_RELATIVE_PATH ||
+      !f.isDirectory()) {
+      return(f);
+    }
+
+    File result=new File(root, ".deep-"+moved.incrementAndGet());
+
+    if (!result.exists() && f.renameTo(result)) {
+      return(result);
+    }
+
+    return(f);
+  }
+
+  private void maybeReport(int count) {
+    long now=System.nanoTime();
+    long last=lastReport.get();
+
+    if (now-last>=intervalNanos && lastReport.compareAndSet(last, now)) {
+      synchronized(this) {
+        listener.onProgress(count);
+      }
+    }
+  }
+}
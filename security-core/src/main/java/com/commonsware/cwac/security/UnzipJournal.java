@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Checkpoint journal for a resumable unzip. The first line
+ * identifies the archive, by its length and the location and
+ * entry count of its central directory. Each following line
+ * records one finished entry, as its index in the central
+ * directory and its CRC-32.
+ *
+ * An entry is only recorded once its file is on disk, so a
+ * journal that survives a crash never claims more than what
+ * was really written. Records are group-committed: the files
+ * finished since the last commit are synced, then their lines
+ * are appended and the journal itself is synced. A torn last
+ * line just fails to parse or to match, and that entry is
+ * unzipped again.
+ *
+ * Instances are thread-safe.
+ */
+final class UnzipJournal {
+  private static final String MAGIC="cwac-unzip-journal 1";
+  private static final int COMMIT_ENTRIES=64;
+  private static final long COMMIT_INTERVAL_MS=1000;
+  private static final Charset UTF8=Charset.forName("UTF-8");
+
+  private final File file;
+  private final String header;
+  private final BitSet completed=new BitSet();
+  private final boolean syncFiles;
+  private final StringBuilder pendingLines=new StringBuilder();
+  private final ArrayList<File> pendingFiles=new ArrayList<File>();
+  private boolean resuming=false;
+  private FileOutputStream out;
+  private long lastCommit;
+
+  /**
+   * Reads the journal, if there is one for this archive.
+   *
+   * @param syncFiles true if files need to be synced before
+   *                  they are recorded, false if the caller
+   *                  already synced them
+   */
+  UnzipJournal(File file, ZipIndex zip, boolean syncFiles)
+    throws IOException {
+    this.file=file;
+    this.syncFiles=syncFiles;
+    header=MAGIC+" "+zip.channel.size()+" "+zip.centralDirectoryOffset+
+      " "+zip.centralDirectorySize+" "+zip.entries.size();
+
+    if (file.exists()) {
+      load(zip);
+    }
+  }
+
+  private void load(ZipIndex zip) throws IOException {
+    BufferedReader in=new BufferedReader(new InputStreamReader(
+      new FileInputStream(file), UTF8));
+
+    try {
+      if (!header.equals(in.readLine())) {
+        return;
+      }
+
+      resuming=true;
+
+      String line;
+
+      while ((line=in.readLine())!=null) {
+        int space=line.indexOf(' ');
+
+        try {
+          int index=Integer.parseInt(line.substring(0, space));
+          long crc=Long.parseLong(line.substring(space+1), 16);
+
+          if (index>=0 && index<zip.entries.size() &&
+            zip.entries.get(index).crc==crc) {
+            completed.set(index);
+          }
+        }
+        catch (RuntimeException e) {
+          // torn or garbled line, so that entry gets redone
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return true if this journal was left behind by an
+   * earlier attempt to unzip this same archive
+   */
+  boolean isResuming() {
+    return(resuming);
+  }
+
+  /**
+   * @return true if the entry was recorded as finished by an
+   * earlier attempt
+   */
+  boolean isCompleted(int index) {
+    return(completed.get(index));
+  }
+
+  /**
+   * Opens the journal for writing, starting a new one unless
+   * we are resuming.
+   */
+  synchronized void start() throws IOException {
+    if (resuming) {
+      out=new FileOutputStream(file, true);
+
+      // in case the last line was torn
+
+      out.write('\n');
+    }
+    else {
+      out=new FileOutputStream(file);
+      out.write((header+"\n").getBytes(UTF8));
+      out.getFD().sync();
+    }
+
+    lastCommit=System.currentTimeMillis();
+  }
+
+  /**
+   * Notes that an entry has been written, committing it and
+   * any others that are pending if enough of them have piled
+   * up, or enough time has passed.
+   */
+  synchronized void record(int index, ZipIndex.Entry entry, File written)
+    throws IOException {
+    pendingLines.append(index).append(' ')
+      .append(Long.toHexString(entry.crc)).append('\n');
+    pendingFiles.add(written);
+
+    if (pendingFiles.size()>=COMMIT_ENTRIES ||
+      System.currentTimeMillis()-lastCommit>=COMMIT_INTERVAL_MS) {
+      commit();
+    }
+  }
+
+  private void commit() throws IOException {
+    if (syncFiles) {
+      for (File f : pendingFiles) {
+        final RandomAccessFile raf=new RandomAccessFile(f, "rw");
+
+        try {
+          raf.getFD().sync();
+        }
+        finally {
+          raf.close();
+        }
+      }
+    }
+
+    out.write(pendingLines.toString().getBytes(UTF8));
+    out.getFD().sync();
+    pendingLines.setLength(0);
+    pendingFiles.clear();
+    lastCommit=System.currentTimeMillis();
+  }
+
+  /**
+   * Closes and deletes the journal, once the unzip has either
+   * finished or been rolled back.
+   */
+  synchronized void delete() {
+    if (out!=null) {
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        // we are getting rid of it anyway
+      }
+
+      out=null;
+    }
+
+    file.delete();
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the numbers for a ZipUtils.UnzipListener during
+ * one unzip operation, and hands them to the listener no more
+ * often than the configured interval. Only created when there
+ * is a listener, so unzips without one pay nothing for this.
+ * One instance is shared by all of the threads unzipping a
+ * given archive.
+ */
+final class UnzipMetrics {
+  private final ZipUtils.UnzipListener listener;
+  private final long intervalNanos;
+  private final int totalEntries;
+  private final long totalBytes;
+  private final long start=System.nanoTime();
+  private final AtomicLong lastReport=new AtomicLong(start);
+  private final AtomicInteger entries=new AtomicInteger(0);
+  private final AtomicLong compressedBytes=new AtomicLong(0);
+  private final AtomicLong uncompressedBytes=new AtomicLong(0);
+  private final AtomicLong inflateNanos=new AtomicLong(0);
+  private final AtomicLong writeNanos=new AtomicLong(0);
+  private final AtomicLong syncNanos=new AtomicLong(0);
+
+  /**
+   * @param totalEntries number of files to be unzipped, or -1
+   *                     if that is not known up front
+   * @param totalBytes declared bytes to be unzipped, or -1 if
+   *                   that is not known up front
+   */
+  static UnzipMetrics create(ZipUtils.Options options, int totalEntries,
+                             long totalBytes) {
+    if (options.listener==null) {
+      return(null);
+    }
+
+    return(new UnzipMetrics(options.listener,
+      options.progressInterval*1000000L, totalEntries, totalBytes));
+  }
+
+  private UnzipMetrics(ZipUtils.UnzipListener listener, long intervalNanos,
+                       int totalEntries, long totalBytes) {
+    this.listener=listener;
+    this.intervalNanos=intervalNanos;
+    this.totalEntries=totalEntries;
+    this.totalBytes=totalBytes;
+  }
+
+  void inflated(long nanos, int count) {
+    inflateNanos.addAndGet(nanos);
+    uncompressedBytes.addAndGet(count);
+  }
+
+  void wrote(long nanos) {
+    writeNanos.addAndGet(nanos);
+  }
+
+  void synced(long nanos) {
+    syncNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Records bytes copied without inflating, such as for
+   * STORED entries.
+   */
+  void copied(long nanos, long count) {
+    writeNanos.addAndGet(nanos);
+    uncompressedBytes.addAndGet(count);
+  }
+
+  void entryDone(long compressed) {
+    entries.incrementAndGet();
+    compressedBytes.addAndGet(compressed);
+    maybeReport();
+  }
+
+  /**
+   * Tells the listener how things stand, if it has not heard
+   * from us within the interval. Cheap enough to call for
+   * every buffer.
+   */
+  void maybeReport() {
+    long now=System.nanoTime();
+    long last=lastReport.get();
+
+    if (now-last>=intervalNanos && lastReport.compareAndSet(last, now)) {
+      synchronized(this) {
+        listener.onProgress(snapshot(now));
+      }
+    }
+  }
+
+  void complete() {
+    synchronized(this) {
+      listener.onComplete(snapshot(System.nanoTime()));
+    }
+  }
+
+  private ZipUtils.UnzipStats snapshot(long now) {
+    return(new ZipUtils.UnzipStats(entries.get(), totalEntries,
+      compressedBytes.get(), uncompressedBytes.get(), totalBytes,
+      inflateNanos.get(), writeNanos.get(), syncNanos.get(), now-start));
+  }
+}
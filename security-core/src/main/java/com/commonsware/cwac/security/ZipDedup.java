@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Finds the entries of an archive that have the same
+ * contents as an earlier entry, for ZipUtils.Options.dedup(),
+ * and gives them those contents without inflating them again.
+ *
+ * Candidates must match on CRC-32, size, compression method,
+ * and compressed size, and then on a SHA-256 digest of their
+ * data as it sits in the archive. Identical compressed data
+ * always inflates to identical contents, so this proves the
+ * match without inflating anything. Entries with the same
+ * contents, compressed differently, are simply unzipped
+ * separately.
+ */
+final class ZipDedup {
+  private static final Method OS_LINK;
+  private static final Method FILES_CREATE_LINK;
+  private static final Method TO_PATH;
+
+  // android.system.Os is API 21+, java.nio.file is API 26+
+  // (and any desktop JVM); without either, we copy
+
+  static {
+    Method osLink=null;
+    Method createLink=null;
+    Method toPath=null;
+
+    try {
+      osLink=Class.forName("android.system.Os")
+        .getMethod("link", String.class, String.class);
+    }
+    catch (Exception e) {
+      osLink=null;
+    }
+
+    try {
+      toPath=File.class.getMethod("toPath");
+      createLink=Class.forName("java.nio.file.Files")
+        .getMethod("createLink", toPath.getReturnType(),
+          toPath.getReturnType());
+    }
+    catch (Exception e) {
+      createLink=null;
+    }
+
+    OS_LINK=osLink;
+    FILES_CREATE_LINK=createLink;
+    TO_PATH=toPath;
+  }
+
+  /**
+   * @param files the file entries to be unzipped
+   * @return map of each duplicate entry to the first entry,
+   * in archive order, with the same contents
+   */
+  static IdentityHashMap<ZipIndex.Entry, ZipIndex.Entry> find(ZipIndex zip,
+                                                List<ZipIndex.Entry> files)
+    throws IOException {
+    IdentityHashMap<ZipIndex.Entry, ZipIndex.Entry> result=
+      new IdentityHashMap<ZipIndex.Entry, ZipIndex.Entry>();
+    HashMap<String, ArrayList<ZipIndex.Entry>> candidates=
+      new HashMap<String, ArrayList<ZipIndex.Entry>>();
+
+    for (ZipIndex.Entry entry : files) {
+      // an empty file is as cheap to create as a link
+
+      if (entry.size>0) {
+        String key=Long.toHexString(entry.crc)+" "+entry.size+" "+
+          entry.method+" "+entry.compressedSize;
+        ArrayList<ZipIndex.Entry> group=candidates.get(key);
+
+        if (group==null) {
+          group=new ArrayList<ZipIndex.Entry>();
+          candidates.put(key, group);
+        }
+
+        group.add(entry);
+      }
+    }
+
+    MessageDigest digest=newDigest();
+
+    for (ArrayList<ZipIndex.Entry> group : candidates.values()) {
+      if (group.size()>1) {
+        HashMap<String, ZipIndex.Entry> firsts=
+          new HashMap<String, ZipIndex.Entry>();
+
+        for (ZipIndex.Entry entry : group) {
+          zip.digestData(entry, digest);
+
+          String hash=toHex(digest.digest());
+          ZipIndex.Entry first=firsts.get(hash);
+
+          if (first==null) {
+            firsts.put(hash, entry);
+          }
+          else {
+            result.put(entry, first);
+          }
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Gives the duplicate the contents of the already-unzipped
+   * original, via a hard link if the filesystem allows it,
+   * otherwise via a copy.
+   */
+  static void share(File original, File duplicate, ZipUtils.Options options,
+                    UnzipMetrics metrics) throws IOException {
+    long start=metrics==null ? 0 : System.nanoTime();
+
+    // a resumed unzip may have left a partial file here
+
+    duplicate.delete();
+
+    if (link(original, duplicate)) {
+      if (metrics!=null) {
+        metrics.copied(System.nanoTime()-start, original.length());
+      }
+    }
+    else {
+      copy(original, duplicate, options, metrics);
+    }
+  }
+
+  private static boolean link(File original, File duplicate) {
+    try {
+      if (OS_LINK!=null) {
+        OS_LINK.invoke(null, original.getPath(), duplicate.getPath());
+
+        return(true);
+      }
+
+      if (FILES_CREATE_LINK!=null) {
+        FILES_CREATE_LINK.invoke(null, TO_PATH.invoke(duplicate),
+          TO_PATH.invoke(original));
+
+        return(true);
+      }
+    }
+    catch (Exception e) {
+      // e.g., a filesystem without hard links, like FAT or
+      // a FUSE-backed external storage, so fall back to a copy
+    }
+
+    return(false);
+  }
+
+  private static void copy(File original, File duplicate,
+                           ZipUtils.Options options, UnzipMetrics metrics)
+    throws IOException {
+    FileInputStream fis=new FileInputStream(original);
+
+    try {
+      FileOutputStream fos=new FileOutputStream(duplicate);
+
+      try {
+        FileChannel in=fis.getChannel();
+        FileChannel out=fos.getChannel();
+        long size=in.size();
+        long done=0;
+
+        while (done<size) {
+          long mark=metrics==null ? 0 : System.nanoTime();
+          long count=in.transferTo(done, size-done, out);
+
+          if (count<=0) {
+            throw new IOException("Could not copy "+original);
+          }
+
+          done+=count;
+
+          if (metrics!=null) {
+            metrics.copied(System.nanoTime()-mark, count);
+            metrics.maybeReport();
+          }
+        }
+
+        if (options.durability==ZipUtils.Durability.PER_ENTRY) {
+          ZipUtils.sync(fos.getFD(), metrics);
+        }
+      }
+      finally {
+        fos.close();
+      }
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return(MessageDigest.getInstance("SHA-256"));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder buf=new StringBuilder(bytes.length*2);
+
+    for (byte b : bytes) {
+      buf.append(Character.forDigit((b>>4) & 0xF, 16))
+        .append(Character.forDigit(b & 0xF, 16));
+    }
+
+    return(buf.toString());
+  }
+}
@@ -0,0 +1,786 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a ZIP-style archive, for
+ * random access to its entries. java.util.zip.ZipFile does
+ * not expose where an entry's data lives in the archive, nor
+ * does it let us reuse Inflater instances, so this does the
+ * work itself. Entry data is read with positional reads, so
+ * one ZipIndex can be shared by several threads.
+ */
+final class ZipIndex implements Closeable {
+  static final int METHOD_STORED=0;
+  static final int METHOD_DEFLATED=8;
+  private static final int LOCAL_HEADER_SIG=0x04034b50;
+  private static final int CENTRAL_HEADER_SIG=0x02014b50;
+  private static final int END_SIG=0x06054b50;
+  private static final int ZIP64_END_SIG=0x06064b50;
+  private static final int ZIP64_LOCATOR_SIG=0x07064b50;
+  private static final int LOCAL_HEADER_SIZE=30;
+  private static final int CENTRAL_HEADER_SIZE=46;
+  private static final int END_SIZE=22;
+  private static final int ZIP64_LOCATOR_SIZE=20;
+  private static final int ZIP64_END_SIZE=56;
+  private static final int ZIP64_EXTRA_ID=0x0001;
+  private static final int MAX_COMMENT=0xFFFF;
+  private static final long ZIP64_MAGIC=0xFFFFFFFFL;
+  private static final int FLAG_ENCRYPTED=0x0001;
+  private static final int READ_SIZE=16384;
+  private static final Charset UTF8=Charset.forName("UTF-8");
+
+  final FileChannel channel;
+  final ArrayList<Entry> entries=new ArrayList<Entry>();
+  long centralDirectoryOffset;
+  long centralDirectorySize;
+  private final Closeable owner;
+  private ByteBuffer mapping;
+
+  // per-thread inflate state, reused for every entry of this
+  // archive that the thread reads; all of it is tracked, so
+  // close() can release the native side of the Inflaters,
+  // rather than leaving that to the garbage collector (or to
+  // CloseGuard complaints on Android)
+
+  private final ArrayList<Scratch> scratches=new ArrayList<Scratch>();
+  private final ThreadLocal<Scratch> scratch=new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      Scratch result=new Scratch();
+
+      synchronized(scratches) {
+        scratches.add(result);
+      }
+
+      return(result);
+    }
+  };
+
+  /**
+   * Opens the archive and reads its central directory.
+   *
+   * @param zipFile the ZIP archive
+   * @param maxEntries throw an IllegalStateException if the
+   *                   central directory lists more than this
+   *                   number of entries
+   */
+  static ZipIndex open(File zipFile, int maxEntries) throws IOException {
+    return(open(zipFile, maxEntries, null));
+  }
+
+  /**
+   * Opens the archive and reads its central directory,
+   * keeping only the entries that the filter accepts.
+   *
+   * @param zipFile the ZIP archive
+   * @param maxEntries throw an IllegalStateException if the
+   *                   filter accepts more than this number of
+   *                   entries
+   * @param filter decides which entries to keep, or null to
+   *               keep all of them
+   */
+  static ZipIndex open(File zipFile, int maxEntries,
+                       ZipUtils.EntryFilter filter) throws IOException {
+    RandomAccessFile raf=new RandomAccessFile(zipFile, "r");
+
+    try {
+      return(new ZipIndex(raf.getChannel(), raf, maxEntries, filter));
+    }
+    catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  ZipIndex(FileChannel channel, Closeable owner, int maxEntries)
+    throws IOException {
+    this(channel, owner, maxEntries, null);
+  }
+
+  ZipIndex(FileChannel channel, Closeable owner, int maxEntries,
+           ZipUtils.EntryFilter filter) throws IOException {
+    this.channel=channel;
+    this.owner=owner;
+
+    readCentralDirectory(maxEntries, filter);
+  }
+
+  /**
+   * Closes the archive and ends the Inflaters of every thread
+   * that read from it. Streams from open(Entry) must not be
+   * in use by then.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(scratches) {
+      for (Scratch state : scratches) {
+        state.end();
+      }
+
+      scratches.clear();
+    }
+
+    owner.close();
+  }
+
+  /**
+   * Memory-maps the whole archive, so all further reads come
+   * from the mapping rather than from the channel.
+   */
+  void map() throws IOException {
+    long size=channel.size();
+
+    if (size>Integer.MAX_VALUE) {
+      throw new IOException("ZIP archive is too large to map");
+    }
+
+    mapping=channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  /**
+   * @return a read-only view of a STORED entry's data,
+   * straight from the mapping, which must have been set up
+   * via map()
+   */
+  ByteBuffer slice(Entry entry) throws IOException {
+    if (entry.method!=METHOD_STORED || entry.compressedSize!=entry.size) {
+      throw new ZipException("Not a stored entry: "+entry.name);
+    }
+
+    ByteBuffer result=mapping.duplicate();
+    int start=(int)dataOffset(entry);
+
+    result.position(start);
+    result.limit(start+(int)entry.size);
+
+    return(result.slice().asReadOnlyBuffer());
+  }
+
+  /**
+   * Checks a STORED entry's data, as it sits in the archive,
+   * against the CRC-32 from the central directory, for callers
+   * that copy that data without going through open(Entry).
+   * This uses the calling thread's buffers, as open(Entry)
+   * does.
+   *
+   * @throws ZipException if the CRC-32 does not match
+   */
+  void checkCrc(Entry entry) throws IOException {
+    Scratch state=scratch.get();
+    long position=dataOffset(entry);
+    long remaining=entry.compressedSize;
+
+    state.crc.reset();
+
+    while (remaining>0) {
+      state.inputBuffer.clear();
+      state.inputBuffer.limit((int)Math.min(state.input.length, remaining));
+
+      int count=readAt(state.inputBuffer, position);
+
+      if (count<0) {
+        throw new ZipException("Truncated ZIP entry: "+entry.name);
+      }
+
+      state.crc.update(state.input, 0, count);
+      position+=count;
+      remaining-=count;
+    }
+
+    if (state.crc.getValue()!=entry.crc) {
+      throw new ZipException("CRC mismatch: "+entry.name);
+    }
+  }
+
+  /**
+   * @return the offset within the archive of the first byte
+   * of the entry's (possibly compressed) data
+   */
+  long dataOffset(Entry entry) throws IOException {
+    if (entry.dataOffset>=0) {
+      return(entry.dataOffset);
+    }
+
+    ByteBuffer header=read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+
+    if (header.getInt(0)!=LOCAL_HEADER_SIG) {
+      throw new ZipException("Bad local header for "+entry.name);
+    }
+
+    long result=entry.localHeaderOffset+LOCAL_HEADER_SIZE+
+      (header.getShort(26) & 0xFFFF)+(header.getShort(28) & 0xFFFF);
+
+    if (result+entry.compressedSize>centralDirectoryOffset) {
+      throw new ZipException("Entry data runs past the end of the archive: "+
+        entry.name);
+    }
+
+    entry.dataOffset=result;
+
+    return(result);
+  }
+
+  /**
+   * Feeds the entry's data, as stored in the archive (so,
+   * still compressed, if it is), to the digest.
+   */
+  void digestData(Entry entry, MessageDigest digest) throws IOException {
+    ByteBuffer buffer=ByteBuffer.allocate(READ_SIZE);
+    long position=dataOffset(entry);
+    long remaining=entry.compressedSize;
+
+    while (remaining>0) {
+      buffer.clear();
+      buffer.limit((int)Math.min(READ_SIZE, remaining));
+      readFully(buffer, position);
+      buffer.flip();
+      position+=buffer.remaining();
+      remaining-=buffer.remaining();
+      digest.update(buffer);
+    }
+  }
+
+  /**
+   * Opens a stream on the uncompressed contents of the entry.
+   * The stream throws a ZipException if the contents do not
+   * match the size and CRC-32 from the central directory. The
+   * stream uses an Inflater kept for the calling thread until
+   * this ZipIndex is closed, so each thread should only read
+   * one entry at a time.
+   */
+  InputStream open(Entry entry) throws IOException {
+    return(open(entry, true));
+  }
+
+  /**
+   * Opens a stream on the uncompressed contents of the entry,
+   * as with open(Entry).
+   *
+   * @param shared true to use the calling thread's Inflater,
+   *               false to give the stream one of its own,
+   *               released when the stream is closed, so a
+   *               thread can have several streams open at once
+   */
+  InputStream open(Entry entry, boolean shared) throws IOException {
+    if (entry.method!=METHOD_STORED && entry.method!=METHOD_DEFLATED) {
+      throw new ZipException("Unsupported compression method "+
+        entry.method+" for "+entry.name);
+    }
+
+    return(new EntryInputStream(entry, dataOffset(entry),
+      shared ? scratch.get() : null));
+  }
+
+  private void readCentralDirectory(int maxEntries,
+                                    ZipUtils.EntryFilter filter)
+    throws IOException {
+    long length=channel.size();
+    int tailSize=(int)Math.min(length, END_SIZE+MAX_COMMENT);
+
+    if (tailSize<END_SIZE) {
+      throw new ZipException("Not a ZIP archive");
+    }
+
+    ByteBuffer tail=read(length-tailSize, tailSize);
+    int end=-1;
+
+    for (int i=tailSize-END_SIZE; i>=0; i--) {
+      if (tail.getInt(i)==END_SIG &&
+        i+END_SIZE+(tail.getShort(i+20) & 0xFFFF)<=tailSize) {
+        end=i;
+        break;
+      }
+    }
+
+    if (end<0) {
+      throw new ZipException("Not a ZIP archive");
+    }
+
+    if (tail.getShort(end+4)!=0 || tail.getShort(end+6)!=0) {
+      throw new ZipException("Multi-disk ZIP archives are not supported");
+    }
+
+    long endOffset=length-tailSize+end;
+
+    centralDirectorySize=tail.getInt(end+12) & ZIP64_MAGIC;
+    centralDirectoryOffset=tail.getInt(end+16) & ZIP64_MAGIC;
+
+    if (endOffset>=ZIP64_LOCATOR_SIZE) {
+      ByteBuffer locator=
+        read(endOffset-ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+
+      if (locator.getInt(0)==ZIP64_LOCATOR_SIG) {
+        long zip64End=locator.getLong(8);
+
+        if (zip64End<0 || zip64End+ZIP64_END_SIZE>endOffset) {
+          throw new ZipException("Bad ZIP64 end of central directory");
+        }
+
+        ByteBuffer zip64=read(zip64End, ZIP64_END_SIZE);
+
+        if (zip64.getInt(0)!=ZIP64_END_SIG) {
+          throw new ZipException("Bad ZIP64 end of central directory");
+        }
+
+        centralDirectorySize=zip64.getLong(40);
+        centralDirectoryOffset=zip64.getLong(48);
+        endOffset=zip64End;
+      }
+    }
+
+    if (centralDirectoryOffset<0 || centralDirectorySize<0 ||
+      centralDirectoryOffset+centralDirectorySize>endOffset) {
+      throw new ZipException("Bad central directory location");
+    }
+
+    Cursor cursor=new Cursor(centralDirectoryOffset,
+      centralDirectoryOffset+centralDirectorySize);
+
+    while (cursor.position<cursor.limit) {
+      Entry entry=readEntry(cursor);
+
+      if (filter==null || isSelected(entry, filter)) {
+        if (entries.size()>=maxEntries) {
+          throw new IllegalStateException("Too many entries in ZIP");
+        }
+
+        entries.add(entry);
+      }
+    }
+  }
+
+  // entries with names that cannot be normalized are always
+  // kept, so they get rejected, rather than slipping past the
+  // checks by not matching the filter
+
+  private static boolean isSelected(Entry entry,
+                                    ZipUtils.EntryFilter filter) {
+    String name;
+
+    try {
+      name=EntryPathValidator.normalize(entry.name);
+    }
+    catch (IllegalStateException e) {
+      return(true);
+    }
+
+    return(filter.accept(name));
+  }
+
+  private Entry readEntry(Cursor cursor) throws IOException {
+    ByteBuffer header=cursor.next(CENTRAL_HEADER_SIZE);
+
+    if (header.getInt()!=CENTRAL_HEADER_SIG) {
+      throw new ZipException("Bad central directory entry");
+    }
+
+    Entry entry=new Entry();
+
+    header.getShort(); // version made by
+    header.getShort(); // version needed to extract
+    entry.flags=header.getShort() & 0xFFFF;
+    entry.method=header.getShort() & 0xFFFF;
+    header.getInt(); // modification time and date
+    entry.crc=header.getInt() & ZIP64_MAGIC;
+    entry.compressedSize=header.getInt() & ZIP64_MAGIC;
+    entry.size=header.getInt() & ZIP64_MAGIC;
+
+    int nameLength=header.getShort() & 0xFFFF;
+    int extraLength=header.getShort() & 0xFFFF;
+    int commentLength=header.getShort() & 0xFFFF;
+
+    header.getShort(); // disk number start
+    header.getShort(); // internal attributes
+    entry.externalAttributes=header.getInt();
+    entry.localHeaderOffset=header.getInt() & ZIP64_MAGIC;
+
+    ByteBuffer variable=cursor.next(nameLength+extraLength+commentLength);
+    byte[] name=new byte[nameLength];
+
+    variable.get(name);
+    entry.name=new String(name, UTF8);
+    readExtra(entry, variable, extraLength);
+
+    if ((entry.flags & FLAG_ENCRYPTED)!=0) {
+      throw new ZipException("Encrypted ZIP entries are not supported: "+
+        entry.name);
+    }
+
+    if (entry.localHeaderOffset<0 || entry.size<0 ||
+      entry.compressedSize<0 ||
+      entry.localHeaderOffset>=centralDirectoryOffset) {
+      throw new ZipException("Bad central directory entry: "+entry.name);
+    }
+
+    return(entry);
+  }
+
+  private void readExtra(Entry entry, ByteBuffer extra, int length)
+    throws ZipException {
+    int end=extra.position()+length;
+
+    while (extra.position()+4<=end) {
+      int id=extra.getShort() & 0xFFFF;
+      int size=extra.getShort() & 0xFFFF;
+      int next=extra.position()+size;
+
+      if (next>end) {
+        throw new ZipException("Bad extra field: "+entry.name);
+      }
+
+      // ZIP64 values only appear for the fields that
+      // overflowed, in this fixed order
+
+      if (id==ZIP64_EXTRA_ID) {
+        if (entry.size==ZIP64_MAGIC && extra.position()+8<=next) {
+          entry.size=extra.getLong();
+        }
+
+        if (entry.compressedSize==ZIP64_MAGIC && extra.position()+8<=next) {
+          entry.compressedSize=extra.getLong();
+        }
+
+        if (entry.localHeaderOffset==ZIP64_MAGIC && extra.position()+8<=next) {
+          entry.localHeaderOffset=extra.getLong();
+        }
+      }
+
+      extra.position(next);
+    }
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer result=ByteBuffer.allocate(length);
+
+    readFully(result, position);
+    result.flip();
+    result.order(ByteOrder.LITTLE_ENDIAN);
+
+    return(result);
+  }
+
+  private void readFully(ByteBuffer buffer, long position)
+    throws IOException {
+    while (buffer.hasRemaining()) {
+      int count=readAt(buffer, position);
+
+      if (count<0) {
+        throw new ZipException("Truncated ZIP archive");
+      }
+
+      position+=count;
+    }
+  }
+
+  private int readAt(ByteBuffer buffer, long position) throws IOException {
+    if (mapping==null) {
+      return(channel.read(buffer, position));
+    }
+
+    if (position>=mapping.limit()) {
+      return(-1);
+    }
+
+    ByteBuffer source=mapping.duplicate();
+    int count=(int)Math.min(buffer.remaining(), mapping.limit()-position);
+
+    source.position((int)position);
+    source.limit((int)position+count);
+    buffer.put(source);
+
+    return(count);
+  }
+
+  /**
+   * One entry from the central directory.
+   */
+  static class Entry {
+    String name;
+    int flags;
+    int method;
+    long crc;
+    long compressedSize;
+    long size;
+    long localHeaderOffset;
+    int externalAttributes;
+    long dataOffset=-1;
+
+    boolean isDirectory() {
+      return(name.endsWith("/"));
+    }
+  }
+
+  private static class Scratch {
+    final byte[] input=new byte[READ_SIZE];
+    final ByteBuffer inputBuffer=ByteBuffer.wrap(input);
+    final CRC32 crc=new CRC32();
+    Inflater inflater;
+
+    Inflater inflater() {
+      if (inflater==null) {
+        inflater=new Inflater(true);
+      }
+      else {
+        inflater.reset();
+      }
+
+      return(inflater);
+    }
+
+    void end() {
+      if (inflater!=null) {
+        inflater.end();
+        inflater=null;
+      }
+    }
+  }
+
+  // buffered, forward-only reader over the central directory
+
+  private class Cursor {
+    private ByteBuffer buffer=ByteBuffer.allocate(READ_SIZE);
+    private long bufferStart;
+    long position;
+    final long limit;
+
+    Cursor(long position, long limit) {
+      this.position=position;
+      this.limit=limit;
+      bufferStart=position;
+      buffer.limit(0);
+    }
+
+    ByteBuffer next(int length) throws IOException {
+      if (position+length>limit) {
+        throw new ZipException("Truncated central directory");
+      }
+
+      int offset=(int)(position-bufferStart);
+
+      if (offset+length>buffer.limit()) {
+        if (length>buffer.capacity()) {
+          buffer=ByteBuffer.allocate(length);
+        }
+
+        bufferStart=position;
+        offset=0;
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), limit-position));
+        readFully(buffer, position);
+        buffer.flip();
+      }
+
+      ByteBuffer result=buffer.duplicate();
+
+      result.position(offset);
+      result.limit(offset+length);
+      result.order(ByteOrder.LITTLE_ENDIAN);
+      position+=length;
+
+      return(result.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+  }
+
+  private class EntryInputStream extends InputStream
+    implements ZipQuota.Counter {
+    private final Entry entry;
+    private final Scratch scratch;
+    private final boolean ownsScratch;
+    private final Inflater inflater;
+    private long position;
+    private long remaining;
+    private long produced=0;
+    private boolean padded=false;
+    private boolean eof=false;
+
+    EntryInputStream(Entry entry, long position, Scratch scratch) {
+      this.entry=entry;
+      this.position=position;
+      this.scratch=scratch==null ? new Scratch() : scratch;
+      ownsScratch=(scratch==null);
+      remaining=entry.compressedSize;
+      inflater=entry.method==METHOD_DEFLATED ? this.scratch.inflater() : null;
+      this.scratch.crc.reset();
+    }
+
+    @Override
+    public void close() {
+      if (inflater!=null && ownsScratch) {
+        inflater.end();
+      }
+    }
+
+    @Override
+    public long compressedBytes() {
+      return(inflater==null ? entry.compressedSize-remaining :
+        inflater.getBytesRead());
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single=new byte[1];
+
+      return(read(single, 0, 1)==-1 ? -1 : single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (eof) {
+        return(-1);
+      }
+
+      if (len==0) {
+        return(0);
+      }
+
+      int count=inflater==null ? readStored(b, off, len) :
+        readDeflated(b, off, len);
+
+      if (count<0) {
+        finish();
+
+        return(-1);
+      }
+
+      produced+=count;
+
+      if (produced>entry.size) {
+        throw new ZipException("Entry is larger than its declared size: "+
+          entry.name);
+      }
+
+      scratch.crc.update(b, off, count);
+
+      return(count);
+    }
+
+    private int readStored(byte[] b, int off, int len) throws IOException {
+      if (remaining==0) {
+        return(-1);
+      }
+
+      ByteBuffer target=
+        ByteBuffer.wrap(b, off, (int)Math.min(len, remaining));
+      int count=readAt(target, position);
+
+      if (count<0) {
+        throw new ZipException("Truncated ZIP entry: "+entry.name);
+      }
+
+      position+=count;
+      remaining-=count;
+
+      return(count);
+    }
+
+    private int readDeflated(byte[] b, int off, int len)
+      throws IOException {
+      try {
+        while (true) {
+          int count=inflater.inflate(b, off, len);
+
+          if (count>0) {
+            return(count);
+          }
+
+          if (inflater.finished()) {
+            return(-1);
+          }
+
+          if (inflater.needsDictionary()) {
+            throw new ZipException("Bad deflate data: "+entry.name);
+          }
+
+          if (inflater.needsInput()) {
+            fill();
+          }
+        }
+      }
+      catch (DataFormatException e) {
+        ZipException result=new ZipException("Bad deflate data: "+
+          entry.name);
+
+        result.initCause(e);
+        throw result;
+      }
+    }
+
+    private void fill() throws IOException {
+      if (remaining==0) {
+        // a nowrap Inflater may want one extra byte past the
+        // end of the real data, per its documentation
+
+        if (padded) {
+          throw new ZipException("Truncated ZIP entry: "+entry.name);
+        }
+
+        padded=true;
+        scratch.input[0]=0;
+        inflater.setInput(scratch.input, 0, 1);
+
+        return;
+      }
+
+      ByteBuffer buffer=scratch.inputBuffer;
+
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), remaining));
+
+      int count=readAt(buffer, position);
+
+      if (count<0) {
+        throw new ZipException("Truncated ZIP entry: "+entry.name);
+      }
+
+      position+=count;
+      remaining-=count;
+      inflater.setInput(scratch.input, 0, count);
+    }
+
+    private void finish() throws IOException {
+      eof=true;
+
+      if (produced!=entry.size) {
+        throw new ZipException("Entry is smaller than its declared size: "+
+          entry.name);
+      }
+
+      if (scratch.crc.getValue()!=entry.crc) {
+        throw new ZipException("CRC mismatch: "+entry.name);
+      }
+    }
+  }
+}
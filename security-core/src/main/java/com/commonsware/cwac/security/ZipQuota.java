@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how much one unzip operation has written,
+ * against the limits in its ZipUtils.Options. Limits are
+ * enforced to the byte: readLimit() says how much to ask for
+ * next, so a copy loop never reads more than one byte past a
+ * limit, and add() fails as soon as a limit is passed. One
+ * instance is shared by all of the threads unzipping a given
+ * archive.
+ */
+final class ZipQuota {
+  private final ZipUtils.Options options;
+  private final long maxSize;
+  private final AtomicLong total=new AtomicLong(0);
+
+  /**
+   * Source of the number of compressed bytes consumed so far
+   * for the entry being written, for the compression ratio
+   * check.
+   */
+  interface Counter {
+    long compressedBytes();
+  }
+
+  ZipQuota(ZipUtils.Options options) {
+    this(options, options.maxSize);
+  }
+
+  /**
+   * @param maxSize total bytes allowed, in place of the
+   *                Options maxSize
+   */
+  ZipQuota(ZipUtils.Options options, long maxSize) {
+    this.options=options;
+    this.maxSize=maxSize;
+  }
+
+  /**
+   * @param normalized an entry name from
+   *                   EntryPathValidator.normalize()
+   */
+  void checkName(String normalized) {
+    int depth=normalized.length()==0 ? 0 : 1;
+
+    for (int i=0; i<normalized.length(); i++) {
+      if (normalized.charAt(i)=='/') {
+        depth++;
+      }
+    }
+
+    if (depth>options.maxDepth) {
+      throw new IllegalStateException("ZIP entry nested too deeply: "+
+        normalized);
+    }
+  }
+
+  /**
+   * Checks what the archive claims about an entry, before
+   * anything is written for it.
+   */
+  void checkDeclared(String name, long size, long compressedSize) {
+    if (size>options.maxEntrySize) {
+      throw new IllegalStateException("ZIP entry too big: "+name);
+    }
+
+    if (options.maxCompressionRatio>0 &&
+      size>(long)options.maxCompressionRatio*Math.max(compressedSize, 1)) {
+      throw new IllegalStateException("Compression ratio too high for "+
+        name);
+    }
+  }
+
+  /**
+   * Claims the full size of an entry up front, for entries
+   * that are copied without being inflated.
+   */
+  void reserve(String name, long size) {
+    if (size>options.maxEntrySize) {
+      throw new IllegalStateException("ZIP entry too big: "+name);
+    }
+
+    // compared before adding, as ZIP64 sizes can be big
+    // enough for the sum to wrap around
+
+    while (true) {
+      long current=total.get();
+
+      if (size>maxSize-current) {
+        throw new IllegalStateException("Too much output from ZIP");
+      }
+
+      if (total.compareAndSet(current, current+size)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param written bytes written so far for this entry
+   * @param bufferSize the size of the caller's buffer
+   * @return how many bytes to read next: enough to fill the
+   * buffer, but no more than one byte past a limit
+   */
+  int readLimit(long written, int bufferSize) {
+    long allowed=Math.min(options.maxEntrySize-written,
+      maxSize-total.get());
+
+    return((int)Math.max(1, Math.min(bufferSize, allowed+1)));
+  }
+
+  /**
+   * Records bytes about to be written for an entry.
+   *
+   * @param name the entry name, for error messages
+   * @param written bytes written so far for this entry
+   * @param count bytes about to be written
+   * @param counter source of compressed bytes consumed for
+   *                this entry, or null if it is not compressed
+   */
+  void add(String name, long written, int count, Counter counter) {
+    long entryTotal=written+count;
+
+    if (total.addAndGet(count)>maxSize) {
+      throw new IllegalStateException("Too much output from ZIP");
+    }
+
+    if (entryTotal>options.maxEntrySize) {
+      throw new IllegalStateException("ZIP entry too big: "+name);
+    }
+
+    if (counter!=null && options.maxCompressionRatio>0 &&
+      entryTotal>(long)options.maxCompressionRatio*
+        Math.max(counter.compressedBytes(), 1)) {
+      throw new IllegalStateException("Compression ratio too high for "+
+        name);
+    }
+  }
+}
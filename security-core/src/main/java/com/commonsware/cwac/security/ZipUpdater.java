@@ -0,0 +1,398 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Brings a directory that was unzipped from an earlier
+ * version of an archive up to date with a new one, for
+ * ZipUtils.update(). Files whose size and CRC-32 already
+ * match are left alone, changed files are unzipped to a
+ * temporary file and renamed over the old one, and files
+ * that are no longer in the archive are deleted.
+ *
+ * A sidecar index next to the directory records the CRC-32,
+ * size, and modification time of each file, as of the last
+ * update, so an unchanged file can be recognized without
+ * reading it. Files missing from the index, or modified since,
+ * are compared by computing their CRC-32.
+ *
+ * Since the directory has existing contents, every path is
+ * checked canonically, and symlinks in it are never
+ * followed.
+ */
+final class ZipUpdater {
+  private static final String MAGIC="cwac-zip-index 1";
+  private static final Charset UTF8=Charset.forName("UTF-8");
+
+  private final ZipIndex zip;
+  private final File destDir;
+  private final ZipUtils.Options options;
+  private final byte[] buffer=new byte[16384];
+
+  static void update(ZipIndex zip, File destDir, ZipUtils.Options options)
+    throws IOException {
+    new ZipUpdater(zip, destDir, options).run();
+  }
+
+  private ZipUpdater(ZipIndex zip, File destDir, ZipUtils.Options options) {
+    this.zip=zip;
+    this.destDir=destDir;
+    this.options=options;
+  }
+
+  private void run() throws IOException {
+    destDir.mkdirs();
+
+    if (!destDir.isDirectory()) {
+      throw new IOException("Could not create "+destDir);
+    }
+
+    final File sidecar=sidecarFor(destDir);
+    final HashMap<String, Record> previous=readSidecar(sidecar);
+    final HashMap<String, Record> current=new HashMap<String, Record>();
+    final HashSet<String> keep=new HashSet<String>();
+    final EntryPathValidator validator=new EntryPathValidator(destDir);
+    final ZipQuota quota=new ZipQuota(options);
+    final UnzipMetrics metrics=ZipUtils.createMetrics(zip, options);
+    final DigestManifest manifest=DigestManifest.create(options);
+    final AtomicBoolean aborted=new AtomicBoolean(false);
+    final ArrayList<File> replaced=new ArrayList<File>();
+
+    keep.add("");
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      String name=EntryPathValidator.normalize(entry.name);
+      String path=validator.toPath(name);
+
+      quota.checkName(name);
+      ZipUtils.requireUnaliased(path);
+      keepWithParents(keep, name);
+
+      if (entry.isDirectory()) {
+        clearAncestors(validator, name+"/");
+
+        File dir=new File(path);
+
+        if (dir.exists() && !dir.isDirectory()) {
+          dir.delete();
+        }
+
+        validator.mkdirs(name);
+      }
+      else {
+        ZipUtils.requireFileName(name);
+        clearAncestors(validator, name);
+        validator.mkdirsForFile(name);
+
+        File target=new File(path);
+
+        if (target.isDirectory()) {
+          ZipUtils.delete(target);
+        }
+
+        if (isUnchanged(target, entry, previous.get(name))) {
+          if (metrics!=null) {
+            metrics.entryDone(0);
+          }
+        }
+        else {
+          replace(entry, name, target, quota, metrics, manifest, aborted);
+
+          if (options.durability==ZipUtils.Durability.BATCH) {
+            replaced.add(target);
+          }
+        }
+
+        current.put(name,
+          new Record(entry.crc, entry.size, target.lastModified()));
+      }
+    }
+
+    removeExtras(keep);
+    writeSidecar(sidecar, current);
+
+    // the renames, and the sidecar next to destDir
+
+    if (options.durability==ZipUtils.Durability.BATCH) {
+      ZipUtils.syncParents(destDir, replaced, metrics);
+    }
+
+    if (metrics!=null) {
+      metrics.complete();
+    }
+  }
+
+  private static File sidecarFor(File destDir) {
+    File dir=destDir.getAbsoluteFile();
+
+    return(new File(dir.getParentFile(), "."+dir.getName()+".zipindex"));
+  }
+
+  private static void keepWithParents(HashSet<String> keep, String name) {
+    int end=name.length();
+
+    while (end>0 && keep.add(name.substring(0, end))) {
+      end=Math.max(0, name.lastIndexOf('/', end-1));
+    }
+  }
+
+  // a file in the old contents may sit where the new contents
+  // need a directory
+
+  private static void clearAncestors(EntryPathValidator validator,
+                                     String name) {
+    int slash=name.indexOf('/');
+
+    while (slash>0) {
+      File f=new File(validator.toPath(name.substring(0, slash)));
+
+      if (f.exists() && !f.isDirectory()) {
+        f.delete();
+      }
+
+      slash=name.indexOf('/', slash+1);
+    }
+  }
+
+  private boolean isUnchanged(File target, ZipIndex.Entry entry,
+                              Record previous) throws IOException {
+    if (!target.isFile() || target.length()!=entry.size) {
+      return(false);
+    }
+
+    if (previous!=null && previous.crc==entry.crc &&
+      previous.size==entry.size &&
+      previous.modified==target.lastModified()) {
+      return(true);
+    }
+
+    return(crcOf(target)==entry.crc);
+  }
+
+  private long crcOf(File f) throws IOException {
+    CRC32 crc=new CRC32();
+    InputStream in=new FileInputStream(f);
+    int count;
+
+    try {
+      while ((count=in.read(buffer))!=-1) {
+        crc.update(buffer, 0, count);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(crc.getValue());
+  }
+
+  // unzips next to the old file, then renames over it, so the
+  // file is always either all old or all new
+
+  private void replace(ZipIndex.Entry entry, String name, File target,
+                       ZipQuota quota, UnzipMetrics metrics,
+                       DigestManifest manifest, AtomicBoolean aborted)
+    throws IOException {
+    File temp=new File(target.getParentFile(),
+      "."+target.getName()+".tmp-"+Long.toHexString(System.nanoTime()));
+    boolean succeeded=false;
+
+    try {
+      ZipUtils.extractEntry(zip, entry, name, temp.getPath(), quota,
+        options, aborted, metrics, manifest);
+
+      if (options.durability==ZipUtils.Durability.BATCH) {
+        sync(temp);
+      }
+
+      if (!temp.renameTo(target)) {
+        throw new IOException("Could not replace "+target);
+      }
+
+      succeeded=true;
+    }
+    finally {
+      if (!succeeded) {
+        temp.delete();
+      }
+    }
+  }
+
+  private static void sync(File f) throws IOException {
+    RandomAccessFile raf=new RandomAccessFile(f, "rw");
+
+    try {
+      raf.getFD().sync();
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  // deletes whatever is not in the new contents (and, with a
+  // filter, matches it), without following symlinks; emptied
+  // directories are deleted deepest-first
+
+  private void removeExtras(HashSet<String> keep) throws IOException {
+    LinkedList<File> dirs=new LinkedList<File>();
+    LinkedList<String> prefixes=new LinkedList<String>();
+    ArrayList<File> emptied=new ArrayList<File>();
+
+    dirs.add(destDir);
+    prefixes.add("");
+
+    while (!dirs.isEmpty()) {
+      File dir=dirs.removeFirst();
+      String prefix=prefixes.removeFirst();
+      File[] children=dir.listFiles();
+
+      if (children==null) {
+        continue;
+      }
+
+      for (File child : children) {
+        String name=prefix+child.getName();
+        boolean extra=!keep.contains(name) &&
+          (options.filter==null || options.filter.accept(name));
+
+        if (ZipUtils.isSymlink(child)) {
+          if (extra) {
+            child.delete();
+          }
+        }
+        else if (child.isDirectory()) {
+          dirs.add(child);
+          prefixes.add(name+"/");
+
+          if (extra) {
+            emptied.add(child);
+          }
+        }
+        else if (extra) {
+          child.delete();
+        }
+      }
+    }
+
+    for (int i=emptied.size()-1; i>=0; i--) {
+      emptied.get(i).delete();
+    }
+  }
+
+  private static HashMap<String, Record> readSidecar(File sidecar) {
+    HashMap<String, Record> result=new HashMap<String, Record>();
+
+    if (!sidecar.exists()) {
+      return(result);
+    }
+
+    try {
+      BufferedReader in=new BufferedReader(new InputStreamReader(
+        new FileInputStream(sidecar), UTF8));
+
+      try {
+        if (!MAGIC.equals(in.readLine())) {
+          return(result);
+        }
+
+        String line;
+
+        while ((line=in.readLine())!=null) {
+          String[] parts=line.split(" ", 4);
+
+          if (parts.length==4) {
+            result.put(parts[3], new Record(Long.parseLong(parts[0], 16),
+              Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (Exception e) {
+      // a damaged index just means comparing more CRCs
+
+      result.clear();
+    }
+
+    return(result);
+  }
+
+  private static void writeSidecar(File sidecar, Map<String, Record> records)
+    throws IOException {
+    StringBuilder buf=new StringBuilder(MAGIC).append('\n');
+
+    for (Map.Entry<String, Record> entry : records.entrySet()) {
+      String name=entry.getKey();
+
+      // such a name could forge a line for some other file
+
+      if (name.indexOf('\n')<0 && name.indexOf('\r')<0) {
+        Record record=entry.getValue();
+
+        buf.append(Long.toHexString(record.crc)).append(' ')
+          .append(record.size).append(' ')
+          .append(record.modified).append(' ')
+          .append(name).append('\n');
+      }
+    }
+
+    File temp=new File(sidecar.getPath()+".tmp");
+    FileOutputStream out=new FileOutputStream(temp);
+
+    try {
+      out.write(buf.toString().getBytes(UTF8));
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(sidecar)) {
+      temp.delete();
+      throw new IOException("Could not write "+sidecar);
+    }
+  }
+
+  private static class Record {
+    final long crc;
+    final long size;
+    final long modified;
+
+    Record(long crc, long size, long modified) {
+      this.crc=crc;
+      this.size=size;
+      this.modified=modified;
+    }
+  }
+}
@@ -0,0 +1,2262 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipInputStream;
+
+// inspired by https://www.securecoding.cert.org/confluence/display/java/IDS04-J.+Safely+extract+files+from+ZipInputStream
+
+/**
+ * Utilities for safely unzipping ZIP-style archives.
+ */
+public class ZipUtils {
+  private static final int BUFFER_SIZE=16384;
+  private static final int DEFAULT_MAX_ENTRIES=1024;
+  private static final int DEFAULT_MAX_SIZE=1024*1024*64;
+  private static final long TRANSFER_SIZE=1024*1024;
+  static final long DEFAULT_PROGRESS_INTERVAL=250;
+  private static final String DEFAULT_MANIFEST_ALGORITHM="SHA-256";
+  private static final int ASYNC_THREADS=2;
+  private static final Method TO_PATH;
+  private static final Method IS_SYMBOLIC_LINK;
+
+  // java.nio.file, where available (API 26+), can spot a
+  // symlink with one lstat(), rather than canonicalizing every
+  // directory on the path, which adds up in deep trees
+
+  static {
+    Method toPath=null;
+    Method isSymbolicLink=null;
+
+    try {
+      toPath=File.class.getMethod("toPath");
+      isSymbolicLink=Class.forName("java.nio.file.Files")
+        .getMethod("isSymbolicLink", toPath.getReturnType());
+    }
+    catch (Exception e) {
+      isSymbolicLink=null;
+    }
+
+    TO_PATH=toPath;
+    IS_SYMBOLIC_LINK=isSymbolicLink;
+  }
+
+  // one buffer per thread, reused for every entry that the
+  // thread unzips, rather than one buffer per entry
+
+  private static final ThreadLocal<byte[]> BUFFERS=
+    new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return(new byte[BUFFER_SIZE]);
+      }
+    };
+
+  private static Executor asyncExecutor=null;
+  private static Executor cleanupExecutor=null;
+
+  /**
+   * Unzips a ZIP-style archive to the designated directory.
+   * Reproduces entire directory tree from the ZIP archive.
+   * Entire operation fails if ZIP file is invalid (attempts
+   * to write outside of designated directory, too big, or
+   * too many entries). The "too big" and "too many entries"
+   * rules are hard-coded in this method; use the four-parameter
+   * unzip() method to configure those.
+   *
+   * If an UnzipException is thrown, anything previously written
+   * to the designated directory is deleted, as is the designated
+   * directory itself.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param destDir the directory to unzip the contents to
+   * @throws UnzipException if something goes haywire
+   */
+  public static void unzip(File zipFile, File destDir)
+      throws UnzipException, IOException {
+    unzip(zipFile, destDir, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Unzips a ZIP-style archive to the designated directory.
+   * Reproduces entire directory tree from the ZIP archive.
+   * Entire operation fails if ZIP file is invalid (attempts
+   * to write outside of designated directory, too big, or
+   * too many entries). The "too big" and "too many entries"
+   * rules are hard-coded in this method; use the four-parameter
+   * unzip() method to configure those.
+   *
+   * If an UnzipException is thrown, anything previously written
+   * to the designated directory is deleted, as is the designated
+   * directory itself.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param destDir the directory to unzip the contents to
+   * @param maxEntries throw an UnzipException if the ZIP
+   *                   archive contains more than this number
+   *                   of entries
+   * @param maxSize throw an UnzipException if the sum of the
+   *                sizes of the entries in the ZIP archive is
+   *                bigger than this size in bytes
+   * @throws UnzipException if something goes haywire
+   */
+  public static void unzip(File zipFile, File destDir,
+                           int maxEntries, int maxSize)
+      throws UnzipException, IOException {
+    unzip(zipFile, destDir,
+      new Options().maxEntries(maxEntries).maxSize(maxSize));
+  }
+
+  /**
+   * Unzips a ZIP-style archive to the designated directory,
+   * inflating entries in parallel. This works off of the
+   * archive's central directory, so the archive is read with
+   * random access rather than being streamed. The same rules
+   * apply as with the four-parameter unzip() method, including
+   * the rollback if an UnzipException is thrown.
+   *
+   * Passing Runtime.getRuntime().availableProcessors() for
+   * threadCount is a reasonable choice for large archives. A
+   * threadCount of 1 or less is the same as calling the
+   * four-parameter unzip() method.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param destDir the directory to unzip the contents to
+   * @param maxEntries throw an UnzipException if the ZIP
+   *                   archive contains more than this number
+   *                   of entries
+   * @param maxSize throw an UnzipException if the sum of the
+   *                sizes of the entries in the ZIP archive is
+   *                bigger than this size in bytes
+   * @param threadCount the maximum number of entries to
+   *                    inflate at once
+   * @throws UnzipException if something goes haywire
+   */
+  public static void unzip(File zipFile, File destDir,
+                           int maxEntries, int maxSize,
+                           int threadCount)
+      throws UnzipException, IOException {
+    unzip(zipFile, destDir,
+      new Options()
+        .maxEntries(maxEntries)
+        .maxSize(maxSize)
+        .threadCount(threadCount));
+  }
+
+  /**
+   * Unzips a ZIP-style archive to the designated directory,
+   * using the limits and other behaviors configured in the
+   * supplied Options. The same rules apply as with the
+   * four-parameter unzip() method, including the rollback
+   * if an UnzipException is thrown.
+   *
+   * The archive is read via its central directory, and every
+   * file is checked against the size and CRC-32 recorded
+   * there. Compressed entries are checked as they are
+   * inflated. Entries that are stored without compression are
+   * copied from the archive to their files channel-to-channel,
+   * then checked by reading their data back from the archive,
+   * so those bytes do pass through the heap once.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param destDir the directory to unzip the contents to
+   * @param options an Options object describing how to unzip
+   * @throws UnzipException if something goes haywire
+   */
+  public static void unzip(File zipFile, File destDir,
+                           Options options)
+      throws UnzipException, IOException {
+    unzip(zipFile, destDir, options, new AtomicBoolean(false), null);
+  }
+
+  /**
+   * Unzips a ZIP-style archive to the designated directory in
+   * the background, on the Executor from the Options, or on
+   * a shared executor that runs a couple of unzips at a time
+   * if there is none. Unzips beyond that wait their turn, so
+   * queueing up several archives does not have them all
+   * fighting over the storage at once. The same rules apply
+   * as with the three-parameter unzip() method; use get() on
+   * the returned UnzipFuture to find out how the unzip went.
+   *
+   * Cancelling the UnzipFuture stops the unzip at its next
+   * buffer, and rolls it back. Once the unzip has finished its
+   * work and is committing the results, it can no longer be
+   * cancelled.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param destDir the directory to unzip the contents to
+   * @param options an Options object describing how to unzip
+   * @return an UnzipFuture for the unzip; its get() throws an
+   * ExecutionException wrapping the UnzipException or
+   * IOException, if the unzip fails
+   */
+  public static UnzipFuture unzipAsync(final File zipFile,
+                                       final File destDir,
+                                       final Options options) {
+    final AtomicBoolean aborted=new AtomicBoolean(false);
+    final AtomicBoolean committed=new AtomicBoolean(false);
+    UnzipFuture result=new UnzipFuture(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        unzip(zipFile, destDir, options, aborted, committed);
+
+        return(null);
+      }
+    }, aborted, committed);
+
+    if (options.executor==null) {
+      getAsyncExecutor().execute(result);
+    }
+    else {
+      options.executor.execute(result);
+    }
+
+    return(result);
+  }
+
+  private static void unzip(File zipFile, File destDir, Options options,
+                            AtomicBoolean aborted, AtomicBoolean committed)
+      throws UnzipException, IOException {
+    if (options.staged && options.checkpoint!=null) {
+      throw new IllegalArgumentException("staged() and checkpoint() cannot be combined");
+    }
+
+    ZipIndex zip=openIndex(zipFile, options);
+
+    try {
+      if (options.staged) {
+        File stagingDir=createStagingDir(destDir);
+
+        unzipRandomAccess(zip, stagingDir, options, aborted);
+        claimCompletion(stagingDir, options, aborted, committed);
+        commitStagingDir(stagingDir, destDir, options);
+      }
+      else {
+        unzipRandomAccess(zip, destDir, options, aborted);
+        claimCompletion(destDir, options, aborted, committed);
+      }
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  // the point past which an unzipAsync() cannot be cancelled;
+  // UnzipFuture.cancel() checks committed under the same lock,
+  // so either the cancel lands first and the finished work is
+  // rolled back, or the unzip is committed and the cancel
+  // fails, never a finished unzip reported as cancelled
+
+  private static void claimCompletion(File dir, Options options,
+                                      AtomicBoolean aborted,
+                                      AtomicBoolean committed)
+      throws UnzipException {
+    if (committed!=null) {
+      synchronized(committed) {
+        if (!aborted.get()) {
+          committed.set(true);
+
+          return;
+        }
+      }
+
+      rollback(dir, options);
+
+      throw new UnzipException("Problem in unzip operation, rolling back",
+        new IllegalStateException("Unzip aborted"));
+    }
+  }
+
+  /**
+   * Unzips a ZIP-style archive, read from the supplied stream,
+   * to the designated directory. The archive is unzipped in a
+   * single streaming pass, so there is no need to copy it to
+   * a file first (e.g., when it is being downloaded or is
+   * coming from a ContentProvider). The limits and the
+   * destination directory checks are applied as each entry
+   * is read. The same rules apply as with the four-parameter
+   * unzip() method, including the rollback if an
+   * UnzipException is thrown. Since the stream can only be
+   * read once, from start to finish, the thread count in the
+   * Options is ignored.
+   *
+   * The stream is closed by the time this method returns.
+   *
+   * @param zipStream stream containing the ZIP archive
+   * @param destDir the directory to unzip the contents to
+   * @param options an Options object describing how to unzip
+   * @throws UnzipException if something goes haywire
+   */
+  public static void unzip(InputStream zipStream, File destDir,
+                           Options options)
+      throws UnzipException, IOException {
+    if (options.staged) {
+      File stagingDir;
+
+      try {
+        stagingDir=createStagingDir(destDir);
+      }
+      catch (IOException e) {
+        zipStream.close();
+        throw e;
+      }
+
+      unzipSequential(zipStream, stagingDir, options);
+      commitStagingDir(stagingDir, destDir, options);
+    }
+    else {
+      unzipSequential(zipStream, destDir, options);
+    }
+  }
+
+  /**
+   * Unzips the files of a ZIP-style archive into memory, for
+   * archives that you just want to read once, such as small
+   * configuration bundles. The same checks and limits apply as
+   * with the three-parameter unzip() method, but nothing is
+   * written to disk, so there is nothing to sync or clean up.
+   * Directory entries are skipped. Only the filter, the
+   * listener, and the manifest apply from the Options, beyond
+   * the limits.
+   *
+   * The archive is rejected, before anything is inflated, if
+   * its files add up to more than maxBytes. The contents all
+   * share one array of exactly that total size.
+   *
+   * @param zipFile the ZIP archive to unzip
+   * @param options an Options object with the limits to apply
+   * @param maxBytes the most bytes of file contents to hold
+   *                 in memory
+   * @return an unmodifiable map, in archive order, of
+   * normalized file names to read-only ByteBuffers of their
+   * contents
+   * @throws UnzipException if something goes haywire
+   */
+  public static Map<String, ByteBuffer> unzipToMemory(File zipFile,
+                                                      Options options,
+                                                      int maxBytes)
+      throws UnzipException, IOException {
+    ZipIndex zip=openIndex(zipFile, options);
+
+    try {
+      return(MemoryUnzipper.unzip(zip, options, maxBytes));
+    }
+    catch (Throwable t) {
+      throw new UnzipException("Problem in unzip operation", t);
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Unzips the files of a ZIP-style archive, read from the
+   * supplied stream, into memory, as with the File flavor of
+   * unzipToMemory(). The limits, including maxBytes, are
+   * applied as the archive is read. The stream is closed by
+   * the time this method returns.
+   *
+   * @param zipStream stream containing the ZIP archive
+   * @param options an Options object with the limits to apply
+   * @param maxBytes the most bytes of file contents to hold
+   *                 in memory
+   * @return an unmodifiable map, in archive order, of
+   * normalized file names to read-only ByteBuffers of their
+   * contents
+   * @throws UnzipException if something goes haywire
+   */
+  public static Map<String, ByteBuffer> unzipToMemory(InputStream zipStream,
+                                                      Options options,
+                                                      int maxBytes)
+      throws UnzipException {
+    try {
+      return(MemoryUnzipper.unzip(zipStream, options, maxBytes));
+    }
+    catch (Throwable t) {
+      throw new UnzipException("Problem in unzip operation", t);
+    }
+  }
+
+  /**
+   * Updates a directory, previously unzipped from some version
+   * of a ZIP-style archive, to match a new version of that
+   * archive, rewriting only what changed. Files whose size and
+   * CRC-32 match the archive's are left alone. Changed files
+   * are unzipped to a temporary file and renamed over the old
+   * one, so each file is always either entirely old or entirely
+   * new. Files and directories that are no longer in the
+   * archive are deleted; if the Options have a filter, only
+   * files that match it are considered for this, so other
+   * content in the directory is left alone.
+   *
+   * To avoid reading every existing file to compare CRCs, the
+   * CRC-32, size, and modification time of each file are
+   * kept in a hidden index file next to the directory. Files
+   * that have changed since the last update are compared by
+   * CRC-32.
+   *
+   * The archive is checked and its limits enforced as with
+   * unzip(), and paths in the directory are checked
+   * canonically, so nothing in it can redirect a write
+   * elsewhere. The directory does not need to exist, nor be
+   * empty. A manifest in the Options applies to the files
+   * that get rewritten. checkpoint() and staged() do not apply
+   * to updates. With BATCH durability, each rewritten file is
+   * synced before it replaces the old one.
+   *
+   * If an UnzipException is thrown, the directory is not
+   * rolled back: files updated so far stay updated, and the
+   * rest are as they were. Running the update again finishes
+   * the job.
+   *
+   * @param zipFile the new version of the ZIP archive
+   * @param destDir the directory to update
+   * @param options an Options object describing how to unzip
+   * @throws UnzipException if something goes haywire
+   */
+  public static void update(File zipFile, File destDir, Options options)
+      throws UnzipException {
+    ZipIndex zip=openIndex(zipFile, options);
+
+    try {
+      ZipUpdater.update(zip, destDir, options);
+    }
+    catch (Throwable t) {
+      throw new UnzipException("Problem in update operation", t);
+    }
+    finally {
+      try {
+        zip.close();
+      }
+      catch (IOException e) {
+        // we were only reading from it
+      }
+    }
+  }
+
+  /**
+   * Checks a ZIP-style archive against the limits in the
+   * supplied Options, using only the archive's central
+   * directory and local headers, without inflating or writing
+   * anything. This rejects archives that:
+   *
+   * - have too many entries
+   * - declare more uncompressed bytes than the size limit
+   * - have an entry whose declared compression ratio is over
+   *   the ratio limit, if one is set
+   * - have two entries that unzip to the same path
+   * - have entries whose data overlaps other entries or the
+   *   central directory, a trick used to build small archives
+   *   that unzip to enormous sizes
+   * - try to write outside of the destination directory
+   *
+   * The unzip() methods that take a File run these checks
+   * before they write anything. They still enforce the limits
+   * while unzipping, in case the archive's headers lie.
+   *
+   * @param zipFile the ZIP archive to check
+   * @param options an Options object with the limits to apply
+   * @throws UnzipException if the archive fails a check; use
+   * getCause() to find out why
+   */
+  public static void inspect(File zipFile, Options options)
+      throws UnzipException {
+    try {
+      openIndex(zipFile, options).close();
+    }
+    catch (IOException e) {
+      throw new UnzipException("Problem inspecting ZIP archive", e);
+    }
+  }
+
+  /**
+   * Creates a ZIP archive of the contents of a directory,
+   * compressing on one thread.
+   *
+   * @param srcDir the directory whose contents should be zipped
+   * @param zipFile the ZIP archive to create
+   * @throws IOException if there is a problem; the partial
+   * archive is deleted
+   */
+  public static void zip(File srcDir, File zipFile) throws IOException {
+    zip(srcDir, zipFile, new Options());
+  }
+
+  /**
+   * Creates a ZIP archive of the contents of a directory.
+   * Entry names are relative to srcDir, and directories get
+   * entries of their own, so empty ones survive a round trip.
+   * Symlinks are skipped. Files are compressed on up to
+   * threadCount threads; large files are split into blocks
+   * that are compressed in parallel, so one big file can use
+   * every thread. The output can be unzipped by any ZIP tool,
+   * and uses ZIP64 when it needs to.
+   *
+   * Only threadCount and durability apply from the Options.
+   * With any durability other than NONE, the archive is
+   * synced to disk before this method returns.
+   *
+   * @param srcDir the directory whose contents should be zipped
+   * @param zipFile the ZIP archive to create; it cannot be
+   *                inside srcDir
+   * @param options an Options object with the thread count
+   *                and durability to use
+   * @throws IOException if there is a problem, including a
+   * file name that would not unzip safely; the partial
+   * archive is deleted
+   */
+  public static void zip(File srcDir, File zipFile, Options options)
+    throws IOException {
+    ZipWriter.zip(srcDir, zipFile, options);
+  }
+
+  /**
+   * Deletes a directory and its contents. Symlinks inside the
+   * directory are deleted, not followed, so only the
+   * directory's own contents are affected. The delete does not
+   * recurse, so it can handle trees of any depth.
+   *
+   * Directories nested too deeply to reach by path are first
+   * moved up into f, as .deep-&lt;n&gt;. If the delete fails
+   * partway, those can remain, so what is left of f is not
+   * necessarily laid out as it was.
+   *
+   * @param f The directory (or file) to delete
+   * @return true if the delete succeeded, false otherwise,
+   * including if there was nothing to delete
+   */
+  public static boolean delete(File f) {
+    return(TreeDeleter.delete(f, null, 1));
+  }
+
+  /**
+   * Deletes a directory and its contents, as does
+   * delete(File), optionally using several threads and
+   * reporting progress along the way. Extra threads help with
+   * wide trees on flash storage, where each delete spends most
+   * of its time waiting on the filesystem.
+   *
+   * @param f The directory (or file) to delete
+   * @param listener a DeleteListener to be told how many files
+   *                 and directories have been deleted so far,
+   *                 or null
+   * @param threadCount number of threads to delete with;
+   *                    1 deletes on the calling thread
+   * @return true if the delete succeeded, false otherwise,
+   * including if there was nothing to delete
+   */
+  public static boolean delete(File f, DeleteListener listener,
+                               int threadCount) {
+    if (threadCount<1) {
+      throw new IllegalArgumentException("threadCount must be at least 1");
+    }
+
+    return(TreeDeleter.delete(f, listener, threadCount));
+  }
+
+  /**
+   * Deletes a directory and its contents in the background.
+   * The directory is first renamed aside, to a hidden sibling,
+   * so once this method returns, the directory is gone from
+   * its original location, and a new one can be created
+   * there. Should the process die before the background delete
+   * finishes, the hidden sibling is left behind, named
+   * .&lt;name&gt;.deleted-&lt;suffix&gt;. Background deletes run
+   * one at a time, on a shared daemon thread.
+   *
+   * @param f The directory (or file) to delete
+   * @return true if the directory was renamed aside (or there
+   * was nothing to delete); false if the rename failed, in
+   * which case nothing was deleted, and you can fall back to
+   * delete()
+   */
+  public static boolean deleteAsync(File f) {
+    if (!f.exists()) {
+      f.delete(); // in case it is a dangling symlink
+
+      return(true);
+    }
+
+    File aside=siblingOf(f, ".deleted");
+
+    if (!f.renameTo(aside)) {
+      return(false);
+    }
+
+    deleteInBackground(aside);
+
+    return(true);
+  }
+
+  private static void unzipSequential(InputStream zipStream, File destDir,
+                                      Options options)
+      throws UnzipException, IOException {
+    try {
+      prepareDestDir(destDir);
+    }
+    catch (IOException e) {
+      zipStream.close();
+      throw e;
+    }
+
+    try {
+      final ArrayList<File> written=new ArrayList<File>();
+      final CountingInputStream counter=
+        new CountingInputStream(new BufferedInputStream(zipStream));
+      final ZipInputStream zis=new ZipInputStream(counter);
+      final byte data[]=BUFFERS.get();
+      final ZipQuota quota=new ZipQuota(options);
+      final AtomicBoolean aborted=new AtomicBoolean(false);
+      final EntryPathValidator validator=new EntryPathValidator(destDir);
+      final UnzipMetrics metrics=UnzipMetrics.create(options, -1, -1);
+      final DigestManifest manifest=DigestManifest.create(options);
+      ZipEntry entry;
+      int entries=0;
+
+      try {
+        while ((entry=zis.getNextEntry()) != null) {
+          final String name=EntryPathValidator.normalize(entry.getName());
+          final String path=validator.toPath(name);
+
+          entries++;
+
+          if (entries > options.maxEntries) {
+            throw new IllegalStateException("Too many entries in ZIP");
+          }
+
+          if (options.filter!=null && !options.filter.accept(name)) {
+            counter.startEntry();
+            skipEntry(zis, name, data, quota, counter, aborted);
+            zis.closeEntry();
+            continue;
+          }
+
+          quota.checkName(name);
+
+          if (entry.isDirectory()) {
+            validator.mkdirs(name);
+          }
+          else {
+            requireFileName(name);
+            validator.mkdirsForFile(name);
+            counter.startEntry();
+            writeEntry(zis, name, path, data, quota, counter, options,
+              aborted, metrics, manifest);
+
+            if (manifest!=null) {
+              manifest.markSeen(name);
+            }
+
+            if (options.durability==Durability.BATCH) {
+              written.add(new File(path));
+            }
+
+            if (metrics!=null) {
+              metrics.entryDone(counter.compressedBytes());
+            }
+          }
+
+          zis.closeEntry();
+        }
+      }
+      finally {
+        zis.close();
+      }
+
+      if (manifest!=null) {
+        manifest.checkAllSeen();
+      }
+
+      finishWrites(destDir, written, options, metrics);
+
+      if (metrics!=null) {
+        metrics.complete();
+      }
+    }
+    catch (Throwable t) {
+      rollback(destDir, options);
+
+      throw new UnzipException("Problem in unzip operation, rolling back", t);
+    }
+  }
+
+  static ZipIndex openIndex(File zipFile, Options options)
+      throws UnzipException {
+    ZipIndex zip=null;
+
+    try {
+      zip=ZipIndex.open(zipFile, options.maxEntries, options.filter);
+      inspect(zip, options);
+
+      return(zip);
+    }
+    catch (Throwable t) {
+      if (zip!=null) {
+        try {
+          zip.close();
+        }
+        catch (IOException e) {
+          // we are already failing, so ignore this one
+        }
+      }
+
+      throw new UnzipException("ZIP archive failed inspection", t);
+    }
+  }
+
+  static void inspect(ZipIndex zip, Options options) throws IOException {
+    final HashMap<String, ZipIndex.Entry> names=
+      new HashMap<String, ZipIndex.Entry>();
+    final ZipQuota quota=new ZipQuota(options);
+    final DigestManifest manifest=DigestManifest.create(options);
+    final ArrayList<String> files=new ArrayList<String>();
+    long declared=0;
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      String name=EntryPathValidator.normalize(entry.name);
+      ZipIndex.Entry other=names.put(name, entry);
+
+      if (!entry.isDirectory()) {
+        files.add(name);
+      }
+
+      if (other!=null && !(other.isDirectory() && entry.isDirectory())) {
+        throw new IllegalStateException("Duplicate entry in ZIP: "+name);
+      }
+
+      quota.checkName(name);
+      quota.checkDeclared(entry.name, entry.size, entry.compressedSize);
+
+      // compared before adding, as ZIP64 sizes can be big
+      // enough for the sum to wrap around
+
+      if (entry.size > options.maxSize-declared) {
+        throw new IllegalStateException("Too much output from ZIP");
+      }
+
+      declared+=entry.size;
+    }
+
+    if (manifest!=null) {
+      manifest.checkNames(files);
+    }
+
+    // each entry's local header and data need to fit in the
+    // gap before the next one, or they are sharing bytes
+
+    ZipIndex.Entry[] byOffset=
+      zip.entries.toArray(new ZipIndex.Entry[zip.entries.size()]);
+
+    Arrays.sort(byOffset, new Comparator<ZipIndex.Entry>() {
+      @Override
+      public int compare(ZipIndex.Entry lhs, ZipIndex.Entry rhs) {
+        return(lhs.localHeaderOffset<rhs.localHeaderOffset ? -1 :
+          (lhs.localHeaderOffset==rhs.localHeaderOffset ? 0 : 1));
+      }
+    });
+
+    for (int i=0; i<byOffset.length; i++) {
+      long end=zip.dataOffset(byOffset[i])+byOffset[i].compressedSize;
+      long next=i+1<byOffset.length ? byOffset[i+1].localHeaderOffset :
+        zip.centralDirectoryOffset;
+
+      if (end>next) {
+        throw new IllegalStateException("Overlapping entries in ZIP: "+
+          byOffset[i].name);
+      }
+    }
+  }
+
+  private static void unzipRandomAccess(final ZipIndex zip, File destDir,
+                                        final Options options,
+                                        final AtomicBoolean aborted)
+      throws UnzipException, IOException {
+    final UnzipJournal journal=options.checkpoint==null ? null :
+      new UnzipJournal(options.checkpoint, zip,
+        options.durability!=Durability.PER_ENTRY);
+    final boolean resuming=journal!=null && journal.isResuming();
+
+    if (resuming) {
+      destDir.mkdirs();
+    }
+    else {
+      prepareDestDir(destDir);
+    }
+
+    ExecutorService pool=null;
+    final AtomicReference<Throwable> failure=new AtomicReference<Throwable>();
+
+    try {
+      try {
+        final ArrayList<Callable<Void>> tasks=new ArrayList<Callable<Void>>();
+        final ArrayList<Callable<Void>> sharing=
+          new ArrayList<Callable<Void>>();
+        final Map<ZipIndex.Entry, ZipIndex.Entry> duplicates=
+          options.dedup ? ZipDedup.find(zip, filesOf(zip)) : null;
+        final ZipQuota quota=new ZipQuota(options);
+        final List<File> written=
+          Collections.synchronizedList(new ArrayList<File>());
+        final EntryPathValidator validator=new EntryPathValidator(destDir);
+        final UnzipMetrics metrics=createMetrics(zip, options);
+        final DigestManifest manifest=DigestManifest.create(options);
+
+        if (journal!=null) {
+          journal.start();
+        }
+
+        // validate everything and create the directory tree
+        // up front, so the tasks only ever write files
+
+        for (int i=0; i<zip.entries.size(); i++) {
+          final ZipIndex.Entry entry=zip.entries.get(i);
+          final int index=i;
+          final String name=EntryPathValidator.normalize(entry.name);
+          final String path=validator.toPath(name);
+
+          checkAborted(aborted);
+          quota.checkName(name);
+
+          if (resuming) {
+            requireUnaliased(path);
+          }
+
+          if (entry.isDirectory()) {
+            validator.mkdirs(name);
+          }
+          else {
+            requireFileName(name);
+            validator.mkdirsForFile(name);
+
+            if (resuming && journal.isCompleted(index) &&
+              new File(path).length()==entry.size) {
+              quota.reserve(entry.name, entry.size);
+
+              if (metrics!=null) {
+                metrics.copied(0, entry.size);
+                metrics.entryDone(entry.compressedSize);
+              }
+
+              continue;
+            }
+
+            if (duplicates!=null && duplicates.containsKey(entry)) {
+              final String originalName=
+                EntryPathValidator.normalize(duplicates.get(entry).name);
+              final File original=new File(validator.toPath(originalName));
+
+              if (manifest!=null &&
+                !MessageDigest.isEqual(manifest.expected(name),
+                  manifest.expected(originalName))) {
+                throw new IllegalStateException(
+                  "ZIP entry does not match manifest: "+name);
+              }
+
+              sharing.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  checkAborted(aborted);
+                  quota.reserve(entry.name, entry.size);
+                  ZipDedup.share(original, new File(path), options, metrics);
+
+                  if (options.durability==Durability.BATCH) {
+                    written.add(new File(path));
+                  }
+
+                  if (journal!=null) {
+                    journal.record(index, entry, new File(path));
+                  }
+
+                  if (metrics!=null) {
+                    metrics.entryDone(entry.compressedSize);
+                  }
+
+                  return(null);
+                }
+              });
+
+              continue;
+            }
+
+            tasks.add(new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                extractEntry(zip, entry, name, path, quota, options,
+                  aborted, metrics, manifest);
+
+                if (options.durability==Durability.BATCH) {
+                  written.add(new File(path));
+                }
+
+                if (journal!=null) {
+                  journal.record(index, entry, new File(path));
+                }
+
+                return(null);
+              }
+            });
+          }
+        }
+
+        if (options.threadCount<=1 || tasks.size()<=1) {
+          for (Callable<Void> task : tasks) {
+            task.call();
+          }
+        }
+        else {
+          final ArrayList<Future<Void>> results=new ArrayList<Future<Void>>();
+
+          pool=Executors.newFixedThreadPool(
+            Math.min(options.threadCount, tasks.size()));
+
+          for (final Callable<Void> task : tasks) {
+            results.add(pool.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                if (!aborted.get()) {
+                  try {
+                    task.call();
+                  }
+                  catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    aborted.set(true);
+                    throw new ExecutionException(t);
+                  }
+                }
+
+                return(null);
+              }
+            }));
+          }
+
+          for (Future<Void> result : results) {
+            try {
+              result.get();
+            }
+            catch (ExecutionException e) {
+              // report whatever failed first, not a worker that
+              // merely noticed that we were aborting
+
+              throw failure.get()==null ? e.getCause() : failure.get();
+            }
+          }
+        }
+
+        // duplicates go last, once the files that they share
+        // contents with are all written
+
+        for (Callable<Void> task : sharing) {
+          task.call();
+        }
+
+        checkAborted(aborted);
+        finishWrites(destDir, written, options, metrics);
+
+        if (journal!=null) {
+          journal.delete();
+        }
+
+        if (metrics!=null) {
+          metrics.complete();
+        }
+      }
+      finally {
+        // workers must be finished before the archive is closed
+        // or we roll back the destination directory
+
+        if (pool!=null) {
+          pool.shutdownNow();
+          pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+    catch (Throwable t) {
+      aborted.set(true);
+      rollback(destDir, options);
+
+      if (journal!=null) {
+        journal.delete();
+      }
+
+      throw new UnzipException("Problem in unzip operation, rolling back", t);
+    }
+  }
+
+  private static List<ZipIndex.Entry> filesOf(ZipIndex zip) {
+    ArrayList<ZipIndex.Entry> result=new ArrayList<ZipIndex.Entry>();
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      if (!entry.isDirectory()) {
+        result.add(entry);
+      }
+    }
+
+    return(result);
+  }
+
+  private static void checkAborted(AtomicBoolean aborted) {
+    if (aborted.get()) {
+      throw new IllegalStateException("Unzip aborted");
+    }
+  }
+
+  // flash storage gets little more out of more than a couple
+  // of archives being written at once, and each unzip can use
+  // threadCount threads of its own
+
+  private static synchronized Executor getAsyncExecutor() {
+    if (asyncExecutor==null) {
+      ThreadPoolExecutor pool=new ThreadPoolExecutor(ASYNC_THREADS,
+        ASYNC_THREADS, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread result=new Thread(r, "ZipUtils unzip");
+
+            result.setDaemon(true);
+
+            return(result);
+          }
+        });
+
+      pool.allowCoreThreadTimeOut(true);
+      asyncExecutor=pool;
+    }
+
+    return(asyncExecutor);
+  }
+
+  static void prepareDestDir(File destDir) throws IOException {
+    if (destDir.exists()) {
+      if (destDir.list().length>0) {
+        throw new IOException("Your destination directory is not empty!");
+      }
+    }
+    else {
+      destDir.mkdirs();
+    }
+  }
+
+  // the caller only needs destDir gone from where it was, so
+  // the contents are deleted in the background whenever they
+  // can be renamed aside; nobody else can see a staging
+  // directory, so that is deleted in place
+
+  static void rollback(File destDir, Options options) {
+    if (destDir.exists()) {
+      if (options.staged) {
+        deleteInBackground(destDir);
+      }
+      else if (!deleteAsync(destDir)) {
+        delete(destDir);
+      }
+    }
+  }
+
+  static File createStagingDir(File destDir) throws IOException {
+    File parent=destDir.getAbsoluteFile().getParentFile();
+
+    parent.mkdirs();
+
+    File result=siblingOf(destDir, ".staging");
+
+    if (!result.mkdir()) {
+      throw new IOException("Could not create staging directory "+result);
+    }
+
+    return(result);
+  }
+
+  // swaps the staging directory into place with renames, so
+  // destDir is always either the old or the new contents,
+  // never a mix; the old contents are deleted afterwards, in
+  // the background
+
+  static void commitStagingDir(File stagingDir, File destDir,
+                               Options options)
+      throws UnzipException {
+    File old=null;
+
+    if (destDir.exists()) {
+      old=siblingOf(destDir, ".old");
+
+      if (!destDir.renameTo(old)) {
+        deleteInBackground(stagingDir);
+
+        throw new UnzipException("Problem in unzip operation, rolling back",
+          new IOException("Could not move aside "+destDir));
+      }
+    }
+
+    if (!stagingDir.renameTo(destDir)) {
+      if (old!=null) {
+        old.renameTo(destDir);
+      }
+
+      deleteInBackground(stagingDir);
+
+      throw new UnzipException("Problem in unzip operation, rolling back",
+        new IOException("Could not move unzipped contents to "+destDir));
+    }
+
+    if (options.durability==Durability.BATCH) {
+      DirectorySync.sync(destDir.getAbsoluteFile().getParentFile());
+    }
+
+    if (old!=null) {
+      deleteInBackground(old);
+    }
+  }
+
+  private static File siblingOf(File dir, String suffix) {
+    File parent=dir.getAbsoluteFile().getParentFile();
+    File result;
+
+    do {
+      result=new File(parent, "."+dir.getName()+suffix+"-"+
+        Long.toHexString(System.nanoTime()));
+    } while (result.exists());
+
+    return(result);
+  }
+
+  private static void deleteInBackground(final File dir) {
+    getCleanupExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        delete(dir);
+      }
+    });
+  }
+
+  // one thread for all background deletes, so a burst of
+  // rollbacks queues up rather than starting a thread apiece;
+  // deletes are disk-bound, so more threads would just fight
+  // over the disk with each other and with any unzips
+
+  private static synchronized Executor getCleanupExecutor() {
+    if (cleanupExecutor==null) {
+      ThreadPoolExecutor pool=new ThreadPoolExecutor(1, 1, 30,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread result=new Thread(r, "ZipUtils cleanup");
+
+            result.setDaemon(true);
+
+            return(result);
+          }
+        });
+
+      pool.allowCoreThreadTimeOut(true);
+      cleanupExecutor=pool;
+    }
+
+    return(cleanupExecutor);
+  }
+
+  static void extractEntry(ZipIndex zip, ZipIndex.Entry entry,
+                                   String name, String path,
+                                   ZipQuota quota, Options options,
+                                   AtomicBoolean aborted,
+                                   UnzipMetrics metrics,
+                                   DigestManifest manifest)
+      throws IOException {
+    // digests need the bytes on the heap, so no zero-copy then
+
+    if (entry.method==ZipIndex.METHOD_STORED && manifest==null) {
+      transferEntry(zip, entry, path, quota, options, aborted, metrics);
+    }
+    else {
+      final InputStream in=zip.open(entry);
+
+      try {
+        writeEntry(in, name, path, BUFFERS.get(), quota,
+          (ZipQuota.Counter)in, options, aborted, metrics, manifest);
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    if (metrics!=null) {
+      metrics.entryDone(entry.compressedSize);
+    }
+  }
+
+  // STORED entries are copied channel-to-channel, so the bytes
+  // do not pass through a Java heap array; the declared size
+  // is checked against the limits before anything is written.
+  // transferTo() checks nothing, so the CRC-32 is checked
+  // afterwards, from the archive's copy of the bytes, which
+  // should still be in the page cache
+
+  private static void transferEntry(ZipIndex zip, ZipIndex.Entry entry,
+                                    String path, ZipQuota quota,
+                                    Options options, AtomicBoolean aborted,
+                                    UnzipMetrics metrics)
+      throws IOException {
+    if (entry.compressedSize!=entry.size) {
+      throw new ZipException("Bad size for stored entry: "+entry.name);
+    }
+
+    quota.reserve(entry.name, entry.size);
+
+    final long start=zip.dataOffset(entry);
+    final FileOutputStream fos=new FileOutputStream(path);
+
+    try {
+      final FileChannel out=fos.getChannel();
+      long done=0;
+
+      while (done<entry.size) {
+        checkAborted(aborted);
+
+        long mark=metrics==null ? 0 : System.nanoTime();
+        long count=zip.channel.transferTo(start+done,
+          Math.min(TRANSFER_SIZE, entry.size-done), out);
+
+        if (count<=0) {
+          throw new ZipException("Truncated ZIP entry: "+entry.name);
+        }
+
+        done+=count;
+
+        if (metrics!=null) {
+          metrics.copied(System.nanoTime()-mark, count);
+          metrics.maybeReport();
+        }
+      }
+
+      zip.checkCrc(entry);
+
+      if (options.durability==Durability.PER_ENTRY) {
+        sync(fos.getFD(), metrics);
+      }
+    }
+    finally {
+      fos.close();
+    }
+  }
+
+  // data is used as-is as the write buffer, so there is no
+  // BufferedOutputStream (and its own buffer) per entry
+
+  // a stream has to be inflated to get past an entry that the
+  // filter rejected, so its bytes are charged to the quota as
+  // though they were written, or a filtered-out bomb would get
+  // all of the time it wants
+
+  static void skipEntry(InputStream in, String name, byte[] data,
+                        ZipQuota quota, ZipQuota.Counter counter,
+                        AtomicBoolean aborted) throws IOException {
+    long skipped=0;
+    int bytesRead;
+
+    while ((bytesRead=in.read(data, 0,
+      quota.readLimit(skipped, data.length))) != -1) {
+      checkAborted(aborted);
+      quota.add(name, skipped, bytesRead, counter);
+      skipped+=bytesRead;
+    }
+  }
+
+  private static void writeEntry(InputStream in, String name, String path,
+                                 byte[] data, ZipQuota quota,
+                                 ZipQuota.Counter counter, Options options,
+                                 AtomicBoolean aborted, UnzipMetrics metrics,
+                                 DigestManifest manifest)
+      throws IOException {
+    final FileOutputStream fos=new FileOutputStream(path);
+
+    try {
+      copyEntry(in, name, fos, data, quota, counter, aborted, metrics,
+        manifest);
+
+      if (options.durability==Durability.PER_ENTRY) {
+        sync(fos.getFD(), metrics);
+      }
+    }
+    finally {
+      fos.close();
+    }
+  }
+
+  // the limits, the abort flag, the manifest digest, and the
+  // metrics all get applied here, buffer by buffer
+
+  static void copyEntry(InputStream in, String name, OutputStream out,
+                        byte[] data, ZipQuota quota,
+                        ZipQuota.Counter counter, AtomicBoolean aborted,
+                        UnzipMetrics metrics, DigestManifest manifest)
+      throws IOException {
+    final byte[] expected=manifest==null ? null : manifest.expected(name);
+    final MessageDigest digest=expected==null ? null : manifest.newDigest();
+    long written=0;
+    int bytesRead;
+    long mark=metrics==null ? 0 : System.nanoTime();
+
+    while ((bytesRead=in.read(data, 0,
+      quota.readLimit(written, data.length))) != -1) {
+      checkAborted(aborted);
+
+      quota.add(name, written, bytesRead, counter);
+
+      if (digest!=null) {
+        digest.update(data, 0, bytesRead);
+      }
+
+      if (metrics!=null) {
+        long now=System.nanoTime();
+
+        metrics.inflated(now-mark, bytesRead);
+        mark=now;
+      }
+
+      out.write(data, 0, bytesRead);
+      written+=bytesRead;
+
+      if (metrics!=null) {
+        long now=System.nanoTime();
+
+        metrics.wrote(now-mark);
+        mark=now;
+        metrics.maybeReport();
+      }
+    }
+
+    if (digest!=null) {
+      DigestManifest.verify(name, digest, expected);
+    }
+  }
+
+  static void finishWrites(File destDir, List<File> written,
+                           Options options, UnzipMetrics metrics)
+      throws IOException {
+    if (options.durability==Durability.BATCH) {
+      for (File f : written) {
+        final RandomAccessFile raf=new RandomAccessFile(f, "rw");
+
+        try {
+          sync(raf.getFD(), metrics);
+        }
+        finally {
+          raf.close();
+        }
+      }
+
+      syncParents(destDir, written, metrics);
+    }
+  }
+
+  /**
+   * Syncs the directories holding the files, then the
+   * directories holding those, up to the one holding destDir,
+   * so the entries for the files survive a crash along with
+   * their contents. Does nothing where DirectorySync is not
+   * supported.
+   *
+   * @param destDir the directory the files were written into
+   * @param files the files, with paths from an
+   *              EntryPathValidator for destDir
+   */
+  static void syncParents(File destDir, List<File> files,
+                          UnzipMetrics metrics) throws IOException {
+    if (!DirectorySync.isSupported()) {
+      return;
+    }
+
+    final File root=destDir.getCanonicalFile();
+    final LinkedHashSet<File> dirs=new LinkedHashSet<File>();
+
+    for (File f : files) {
+      File dir=f.getParentFile();
+
+      while (dir!=null && dirs.add(dir) && !dir.equals(root)) {
+        dir=dir.getParentFile();
+      }
+    }
+
+    if (root.getParentFile()!=null) {
+      dirs.add(root.getParentFile());
+    }
+
+    for (File dir : dirs) {
+      long start=metrics==null ? 0 : System.nanoTime();
+
+      DirectorySync.sync(dir);
+
+      if (metrics!=null) {
+        metrics.synced(System.nanoTime()-start);
+      }
+    }
+  }
+
+  static void sync(FileDescriptor fd, UnzipMetrics metrics)
+      throws IOException {
+    long start=metrics==null ? 0 : System.nanoTime();
+
+    fd.sync();
+
+    if (metrics!=null) {
+      metrics.synced(System.nanoTime()-start);
+    }
+  }
+
+  static UnzipMetrics createMetrics(ZipIndex zip, Options options) {
+    if (options.listener==null) {
+      return(null);
+    }
+
+    int files=0;
+    long bytes=0;
+
+    for (ZipIndex.Entry entry : zip.entries) {
+      if (!entry.isDirectory()) {
+        files++;
+        bytes+=entry.size;
+      }
+    }
+
+    return(UnzipMetrics.create(options, files, bytes));
+  }
+
+  // a resumed unzip writes into a directory that has been
+  // sitting around, so make sure that nothing in it now
+  // redirects the path elsewhere
+
+  static void requireUnaliased(String path) throws IOException {
+    if (!new File(path).getCanonicalPath().equals(path)) {
+      throw new IllegalStateException("ZIP entry tried to write outside destination directory");
+    }
+  }
+
+  static boolean isSymlink(File f) throws IOException {
+    if (IS_SYMBOLIC_LINK!=null) {
+      try {
+        return((Boolean)IS_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(f)));
+      }
+      catch (Exception e) {
+        // fall back to comparing paths
+      }
+    }
+
+    File candidate=new File(f.getAbsoluteFile().getParentFile()
+      .getCanonicalFile(), f.getName());
+
+    return(!candidate.getCanonicalPath().equals(candidate.getAbsolutePath()));
+  }
+
+  static void requireFileName(String name) {
+    if (name.length()==0) {
+      throw new IllegalStateException("ZIP entry has no file name");
+    }
+  }
+
+  /**
+   * How hard unzip() should work to ensure that the unzipped
+   * files are on disk by the time that unzip() returns.
+   */
+  public enum Durability {
+    /**
+     * Sync each file as soon as it is written. This is the
+     * default and is the safest, but it is slow for archives
+     * with lots of small entries.
+     */
+    PER_ENTRY,
+
+    /**
+     * Sync all of the written files in one pass once the
+     * entire archive has been unzipped, then the directories
+     * holding them, so their directory entries are on disk
+     * too. If the process dies partway through, some files may
+     * be incomplete, just as with PER_ENTRY, but unzipping runs
+     * substantially faster for archives with lots of small
+     * entries. See Options.durability() for where directories
+     * cannot be synced.
+     */
+    BATCH,
+
+    /**
+     * Do not sync at all, leaving it up to the OS to write the
+     * files to disk when it sees fit. Use this for scratch data
+     * that can be unzipped again if needed.
+     */
+    NONE
+  }
+
+  /**
+   * Configuration options for unzip(). This class has a
+   * builder-style API, so you can configure an instance via
+   * a chained set of method calls.
+   */
+  public static class Options {
+    int maxEntries=DEFAULT_MAX_ENTRIES;
+    long maxSize=DEFAULT_MAX_SIZE;
+    long maxEntrySize=Long.MAX_VALUE;
+    int maxDepth=Integer.MAX_VALUE;
+    int threadCount=1;
+    Durability durability=Durability.PER_ENTRY;
+    boolean staged=false;
+    int maxCompressionRatio=0;
+    File checkpoint=null;
+    EntryFilter filter=null;
+    UnzipListener listener=null;
+    long progressInterval=DEFAULT_PROGRESS_INTERVAL;
+    Map<String, String> manifest=null;
+    String manifestAlgorithm=DEFAULT_MANIFEST_ALGORITHM;
+    Executor executor=null;
+    boolean dedup=false;
+
+    /**
+     * @param maxEntries throw an UnzipException if the ZIP
+     *                   archive contains more than this number
+     *                   of entries
+     * @return the options object for chained method calls
+     */
+    public Options maxEntries(int maxEntries) {
+      this.maxEntries=maxEntries;
+
+      return(this);
+    }
+
+    /**
+     * @param maxSize throw an UnzipException if the sum of the
+     *                sizes of the entries in the ZIP archive is
+     *                bigger than this size in bytes
+     * @return the options object for chained method calls
+     */
+    public Options maxSize(int maxSize) {
+      return(maxSize((long)maxSize));
+    }
+
+    /**
+     * @param maxSize throw an UnzipException if the sum of the
+     *                sizes of the entries in the ZIP archive is
+     *                bigger than this size in bytes
+     * @return the options object for chained method calls
+     */
+    public Options maxSize(long maxSize) {
+      this.maxSize=maxSize;
+
+      return(this);
+    }
+
+    /**
+     * @param maxEntrySize throw an UnzipException if any one
+     *                     entry in the ZIP archive is bigger
+     *                     than this size in bytes (default: no
+     *                     limit beyond maxSize)
+     * @return the options object for chained method calls
+     */
+    public Options maxEntrySize(long maxEntrySize) {
+      this.maxEntrySize=maxEntrySize;
+
+      return(this);
+    }
+
+    /**
+     * @param maxDepth throw an UnzipException if any entry in
+     *                 the ZIP archive is nested more than this
+     *                 many levels deep, counting the entry
+     *                 itself, so "a/b/c.txt" has a depth of 3
+     *                 (default: no limit)
+     * @return the options object for chained method calls
+     */
+    public Options maxDepth(int maxDepth) {
+      this.maxDepth=maxDepth;
+
+      return(this);
+    }
+
+    /**
+     * Call this to inflate entries in parallel, when unzipping
+     * a File. Runtime.getRuntime().availableProcessors() is a
+     * reasonable choice for large archives. The default is 1,
+     * which unzips one entry at a time.
+     *
+     * @param threadCount the maximum number of entries to
+     *                    inflate at once
+     * @return the options object for chained method calls
+     */
+    public Options threadCount(int threadCount) {
+      this.threadCount=threadCount;
+
+      return(this);
+    }
+
+    /**
+     * Directories can only be synced with java.nio.file (API
+     * 26+, and desktop JVMs) or android.system.Os (API 21+).
+     * On older devices, BATCH syncs the contents of the files
+     * but not the directories holding them, so after a power
+     * loss, a file might be missing even though its contents
+     * had been synced. PER_ENTRY syncs file contents only. On
+     * all devices, some filesystems refuse to sync directories,
+     * and that is not treated as an error.
+     *
+     * @param durability how to ensure that the unzipped files
+     *                   get to disk (default: PER_ENTRY)
+     * @return the options object for chained method calls
+     */
+    public Options durability(Durability durability) {
+      this.durability=durability;
+
+      return(this);
+    }
+
+    /**
+     * Call this to reject archives with an entry whose size
+     * is more than this many times its compressed size. Such
+     * entries are a hallmark of "ZIP bombs". This is checked
+     * against what the archive declares, and again as each
+     * entry is inflated, so a bomb is stopped as soon as the
+     * ratio is exceeded, whatever it declares. Bear in mind that
+     * some legitimate content, such as long runs of zeros,
+     * compresses very well. The default is 0, meaning that
+     * there is no ratio limit.
+     *
+     * @param maxCompressionRatio the highest allowed ratio of
+     *                            uncompressed to compressed
+     *                            size, or 0 for no limit
+     * @return the options object for chained method calls
+     */
+    public Options maxCompressionRatio(int maxCompressionRatio) {
+      this.maxCompressionRatio=maxCompressionRatio;
+
+      return(this);
+    }
+
+    /**
+     * Call this to unzip into a temporary directory next to
+     * the destination directory, then rename it into place
+     * once the whole archive has been unzipped. Nothing ever
+     * sees a partially-unzipped destination directory, and
+     * the destination directory does not need to be empty:
+     * its old contents are replaced as a whole and deleted on
+     * a background thread. If the unzip fails, the temporary
+     * directory is deleted on a background thread as well, so
+     * the rollback does not block the caller.
+     *
+     * The parent of the destination directory needs to be
+     * writable, so the temporary directory can be created.
+     *
+     * @param staged true to unzip via a temporary directory,
+     *               false otherwise (default: false)
+     * @return the options object for chained method calls
+     */
+    public Options staged(boolean staged) {
+      this.staged=staged;
+
+      return(this);
+    }
+
+    /**
+     * Call this to make an unzip of a File resumable. As
+     * entries are finished, they are recorded in the supplied
+     * journal file, along with enough about the archive to
+     * recognize it again. If the process dies partway through,
+     * calling unzip() again with the same archive, destination
+     * directory, and journal picks up where it left off: the
+     * destination directory does not need to be empty, and
+     * entries that the journal says are finished, and whose
+     * files have the right size, are skipped rather than
+     * unzipped again.
+     *
+     * The journal is deleted when the unzip succeeds, or when
+     * it fails with an UnzipException and is rolled back. A
+     * journal for some other archive is ignored and replaced.
+     * This cannot be combined with staged(), and it has no
+     * effect when unzipping from a stream.
+     *
+     * @param journal where to keep track of finished entries;
+     *                ideally next to, not inside, the
+     *                destination directory
+     * @return the options object for chained method calls
+     */
+    public Options checkpoint(File journal) {
+      this.checkpoint=journal;
+
+      return(this);
+    }
+
+    /**
+     * Call this to unzip only some of the entries in the
+     * archive. When unzipping a File, the other entries are
+     * skipped using the archive's central directory, without
+     * reading their data, so pulling a few entries out of a big
+     * archive is quick. The limits and the destination
+     * directory checks apply to the selected entries; the
+     * entry count limit, for example, is on how many entries
+     * are selected. When unzipping a stream, there is no
+     * central directory, so the other entries have to be
+     * inflated to get past them; there, every entry counts
+     * against the entry count limit, and the bytes of skipped
+     * entries count against the size and compression ratio
+     * limits as though they were unzipped. Parent directories
+     * of selected entries are created as needed. An entry
+     * whose name would write outside of the destination
+     * directory fails the unzip, whether or not it matches.
+     *
+     * @param filter decides which entries to unzip, or null
+     *               for all of them (default: null)
+     * @return the options object for chained method calls
+     */
+    public Options filter(EntryFilter filter) {
+      this.filter=filter;
+
+      return(this);
+    }
+
+    /**
+     * Call this to find out how an unzip is progressing, and
+     * where its time goes. See UnzipListener for details.
+     *
+     * @param listener gets progress and the final numbers, or
+     *                 null for no listener (default: null)
+     * @return the options object for chained method calls
+     */
+    public Options listener(UnzipListener listener) {
+      this.listener=listener;
+
+      return(this);
+    }
+
+    /**
+     * @param progressInterval the least number of milliseconds
+     *                         between calls to onProgress() on
+     *                         the listener (default: 250)
+     * @return the options object for chained method calls
+     */
+    public Options progressInterval(long progressInterval) {
+      this.progressInterval=progressInterval;
+
+      return(this);
+    }
+
+    /**
+     * Call this to verify the unzipped files against a
+     * manifest of SHA-256 digests. Each file's digest is
+     * computed as it is written, so there is no need to read
+     * the files back afterwards. The unzip fails, and is rolled
+     * back, if a file's digest does not match, if the archive
+     * has a file that is not in the manifest, or if a file in
+     * the manifest is not in the archive. When unzipping a
+     * File, the last two are checked before anything is
+     * written. Directories do not need to be listed.
+     * SafeZipArchive only checks the names, not the digests.
+     *
+     * @param manifest map of entry names to hex-encoded
+     *                 digests, in either case, with or without
+     *                 colons between bytes (as from
+     *                 HexUtils.toHexStringWithColons())
+     * @return the options object for chained method calls
+     */
+    public Options manifest(Map<String, String> manifest) {
+      return(manifest(manifest, DEFAULT_MANIFEST_ALGORITHM));
+    }
+
+    /**
+     * Call this to verify the unzipped files against a
+     * manifest of digests, as with the one-parameter
+     * manifest() method, using some other digest algorithm.
+     *
+     * @param manifest map of entry names to hex-encoded digests
+     * @param algorithm the MessageDigest algorithm that the
+     *                  digests were computed with
+     * @return the options object for chained method calls
+     */
+    public Options manifest(Map<String, String> manifest,
+                            String algorithm) {
+      this.manifest=manifest;
+      this.manifestAlgorithm=algorithm;
+
+      return(this);
+    }
+
+    /**
+     * Call this to unzip the contents of identical files in
+     * the archive only once. An entry whose compressed data is
+     * byte-for-byte the same as an earlier entry's (checked by
+     * CRC-32, sizes, and a SHA-256 digest) is not inflated;
+     * instead, its file is hard-linked to the earlier entry's
+     * file, or, where the filesystem does not allow hard links,
+     * copied from it. Hard-linked files share their contents,
+     * so if you modify one in place, the others change too.
+     * This only applies when unzipping a File.
+     *
+     * @param dedup true to unzip identical entries only once
+     *              (default: false)
+     * @return the options object for chained method calls
+     */
+    public Options dedup(boolean dedup) {
+      this.dedup=dedup;
+
+      return(this);
+    }
+
+    /**
+     * Call this to have unzipAsync() run the unzip on your
+     * own Executor, such as one shared with other storage-heavy
+     * work. Use a bounded one, so a pile of queued unzips does
+     * not turn into a pile of threads.
+     *
+     * @param executor the Executor to unzip on, or null for
+     *                 the default one (default: null)
+     * @return the options object for chained method calls
+     */
+    public Options executor(Executor executor) {
+      this.executor=executor;
+
+      return(this);
+    }
+  }
+
+  /**
+   * The result of unzipAsync(). Beyond what a Future offers,
+   * you can wait for a cancelled unzip to finish rolling back.
+   */
+  public static class UnzipFuture extends FutureTask<Void> {
+    private final AtomicBoolean aborted;
+    private final AtomicBoolean committed;
+    private final AtomicBoolean started=new AtomicBoolean(false);
+    private final CountDownLatch finished=new CountDownLatch(1);
+
+    UnzipFuture(Callable<Void> work, AtomicBoolean aborted,
+                AtomicBoolean committed) {
+      super(work);
+      this.aborted=aborted;
+      this.committed=committed;
+    }
+
+    @Override
+    public void run() {
+      if (started.compareAndSet(false, true)) {
+        try {
+          super.run();
+        }
+        finally {
+          finished.countDown();
+        }
+      }
+    }
+
+    /**
+     * Cancels the unzip. If it is underway, it stops at its
+     * next buffer and rolls back, on its own thread; use
+     * awaitTermination() to wait for that. Once the unzip has
+     * finished its work, this returns false, even if get()
+     * would not return yet. The unzip is never interrupted, so
+     * the value of mayInterruptIfRunning does not matter.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean result;
+
+      synchronized(committed) {
+        result=!committed.get() && super.cancel(false);
+
+        if (result) {
+          aborted.set(true);
+        }
+      }
+
+      if (result) {
+        if (started.compareAndSet(false, true)) {
+          finished.countDown();
+        }
+      }
+
+      return(result);
+    }
+
+    /**
+     * Waits until the unzip is no longer doing anything,
+     * whether it succeeded, failed, or was cancelled and has
+     * been rolled back. Unlike get(), this does not return
+     * early for a cancelled unzip.
+     */
+    public void awaitTermination() throws InterruptedException {
+      finished.await();
+    }
+
+    /**
+     * Waits, up to the timeout, until the unzip is no longer
+     * doing anything, as with the no-parameter
+     * awaitTermination().
+     *
+     * @return true if the unzip is no longer doing anything,
+     * false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+      return(finished.await(timeout, unit));
+    }
+  }
+
+  /**
+   * Receives progress for delete(File, DeleteListener, int).
+   * Calls are made one at a time, from whichever thread is
+   * doing the deleting, so keep them quick.
+   */
+  public interface DeleteListener {
+    /**
+     * Called as the delete goes along, no more often than
+     * every 250ms, and once more when it is done.
+     *
+     * @param deleted number of files and directories deleted
+     *                so far
+     */
+    void onProgress(int deleted);
+  }
+
+  /**
+   * Receives progress and metrics for an unzip; see
+   * Options.listener(). Calls are made on whatever thread is
+   * doing the unzipping, one at a time, so keep them quick and
+   * hand the numbers off to another thread for any real work.
+   * If a call throws an exception, the unzip fails and is
+   * rolled back.
+   */
+  public interface UnzipListener {
+    /**
+     * Called as the unzip goes along, no more often than the
+     * Options progress interval.
+     *
+     * @param stats the numbers so far
+     */
+    void onProgress(UnzipStats stats);
+
+    /**
+     * Called once, when the unzip has succeeded. This is not
+     * called if the unzip fails.
+     *
+     * @param stats the final numbers
+     */
+    void onComplete(UnzipStats stats);
+  }
+
+  /**
+   * Snapshot of how far an unzip has gotten, and where its
+   * time has gone. The phase times are summed over all of the
+   * threads doing the unzipping, so with several threads they
+   * can add up to more than the elapsed time.
+   */
+  public static class UnzipStats {
+    private final int entries;
+    private final int totalEntries;
+    private final long compressedBytes;
+    private final long uncompressedBytes;
+    private final long totalBytes;
+    private final long inflateNanos;
+    private final long writeNanos;
+    private final long syncNanos;
+    private final long elapsedNanos;
+
+    UnzipStats(int entries, int totalEntries, long compressedBytes,
+               long uncompressedBytes, long totalBytes, long inflateNanos,
+               long writeNanos, long syncNanos, long elapsedNanos) {
+      this.entries=entries;
+      this.totalEntries=totalEntries;
+      this.compressedBytes=compressedBytes;
+      this.uncompressedBytes=uncompressedBytes;
+      this.totalBytes=totalBytes;
+      this.inflateNanos=inflateNanos;
+      this.writeNanos=writeNanos;
+      this.syncNanos=syncNanos;
+      this.elapsedNanos=elapsedNanos;
+    }
+
+    /**
+     * @return the number of files finished so far
+     */
+    public int getEntries() {
+      return(entries);
+    }
+
+    /**
+     * @return the number of files to be unzipped, or -1 when
+     * unzipping from a stream, where that is not known
+     */
+    public int getTotalEntries() {
+      return(totalEntries);
+    }
+
+    /**
+     * @return compressed bytes consumed by finished files
+     */
+    public long getCompressedBytes() {
+      return(compressedBytes);
+    }
+
+    /**
+     * @return uncompressed bytes unzipped so far
+     */
+    public long getUncompressedBytes() {
+      return(uncompressedBytes);
+    }
+
+    /**
+     * @return the uncompressed bytes that the archive declares,
+     * or -1 when unzipping from a stream, where that is not
+     * known
+     */
+    public long getTotalBytes() {
+      return(totalBytes);
+    }
+
+    /**
+     * @return nanoseconds spent reading and inflating entries
+     */
+    public long getInflateNanos() {
+      return(inflateNanos);
+    }
+
+    /**
+     * @return nanoseconds spent writing files, including
+     * copying entries stored without compression
+     */
+    public long getWriteNanos() {
+      return(writeNanos);
+    }
+
+    /**
+     * @return nanoseconds spent syncing files to disk
+     */
+    public long getSyncNanos() {
+      return(syncNanos);
+    }
+
+    /**
+     * @return nanoseconds since the unzip started
+     */
+    public long getElapsedNanos() {
+      return(elapsedNanos);
+    }
+
+    /**
+     * @return uncompressed bytes unzipped per second, so far
+     */
+    public long getBytesPerSecond() {
+      return(elapsedNanos==0 ? 0 :
+        (long)(uncompressedBytes*1000000000.0/elapsedNanos));
+    }
+  }
+
+  /**
+   * Decides which entries of an archive to unzip; see
+   * Options.filter(). Use glob() or prefixes() for the common
+   * cases, or subclass this for anything else.
+   */
+  public static abstract class EntryFilter {
+    /**
+     * @param name the entry's name, normalized to a relative
+     *             path with '/' separators, with no leading
+     *             "./" and no trailing '/' for directories
+     * @return true to unzip the entry, false to skip it
+     */
+    public abstract boolean accept(String name);
+
+    /**
+     * Accepts entries whose names match any of the supplied
+     * glob patterns. In a pattern, ? matches any one character
+     * other than '/', * matches any run of characters other
+     * than '/', and ** matches any run of characters at all,
+     * so "res/values-fr/*.xml" matches the XML files directly
+     * in that directory, and "assets/fr/**" matches everything
+     * under that directory.
+     *
+     * @param globs the patterns to match
+     * @return a filter accepting entries that match any of them
+     */
+    public static EntryFilter glob(String... globs) {
+      StringBuilder regex=new StringBuilder();
+
+      for (String glob : globs) {
+        if (regex.length()>0) {
+          regex.append('|');
+        }
+
+        regex.append("(?:");
+
+        for (int i=0; i<glob.length(); i++) {
+          char c=glob.charAt(i);
+
+          if (c=='*') {
+            if (i+1<glob.length() && glob.charAt(i+1)=='*') {
+              regex.append(".*");
+              i++;
+            }
+            else {
+              regex.append("[^/]*");
+            }
+          }
+          else if (c=='?') {
+            regex.append("[^/]");
+          }
+          else {
+            regex.append(Pattern.quote(String.valueOf(c)));
+          }
+        }
+
+        regex.append(')');
+      }
+
+      final Pattern pattern=Pattern.compile(regex.toString(), Pattern.DOTALL);
+
+      return(new EntryFilter() {
+        @Override
+        public boolean accept(String name) {
+          return(pattern.matcher(name).matches());
+        }
+      });
+    }
+
+    /**
+     * Accepts entries whose names start with any of the
+     * supplied prefixes. Use a trailing '/' to select a
+     * directory's contents, such as "assets/fr/".
+     *
+     * @param prefixes the prefixes to match
+     * @return a filter accepting entries that start with any
+     * of them
+     */
+    public static EntryFilter prefixes(String... prefixes) {
+      final String[] copy=prefixes.clone();
+
+      return(new EntryFilter() {
+        @Override
+        public boolean accept(String name) {
+          for (String prefix : copy) {
+            if (name.startsWith(prefix)) {
+              return(true);
+            }
+          }
+
+          return(false);
+        }
+      });
+    }
+  }
+
+  // counts what ZipInputStream pulls from the archive, as an
+  // estimate of compressed bytes consumed per entry
+
+  static class CountingInputStream extends FilterInputStream
+    implements ZipQuota.Counter {
+    private long count=0;
+    private long entryStart=0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    void startEntry() {
+      entryStart=count;
+    }
+
+    @Override
+    public long compressedBytes() {
+      return(count-entryStart);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result=super.read();
+
+      if (result!=-1) {
+        count++;
+      }
+
+      return(result);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+      throws IOException {
+      int result=super.read(buffer, offset, length);
+
+      if (result>0) {
+        count+=result;
+      }
+
+      return(result);
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      long result=super.skip(byteCount);
+
+      count+=result;
+
+      return(result);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return(false);
+    }
+  }
+
+  /**
+   * Exception raised if something goes wrong in the unzip
+   * work. Use getCause() to examine the underlying exception
+   * (e.g., IllegalStateException).
+   */
+  public static class UnzipException extends Exception {
+    public UnzipException(String detailMessage, Throwable throwable) {
+      super(detailMessage, throwable);
+    }
+  }
+}
@@ -0,0 +1,763 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive of a directory tree, compressing on
+ * several threads. Small files are each compressed by one
+ * worker. Large files are split into blocks that are
+ * compressed independently, pigz-style: each block but the
+ * last ends with a sync flush, so the compressed blocks can
+ * simply be concatenated, and each block is primed with the
+ * tail of the previous one as its dictionary, so little
+ * compression is lost. The main thread reads the large files,
+ * computes their CRC-32s, and writes everything out in order.
+ */
+final class ZipWriter {
+  private static final int BLOCK_SIZE=128*1024;
+  private static final int DICTIONARY_SIZE=32*1024;
+  private static final int LOCAL_HEADER_SIG=0x04034b50;
+  private static final int CENTRAL_HEADER_SIG=0x02014b50;
+  private static final int END_SIG=0x06054b50;
+  private static final int ZIP64_END_SIG=0x06064b50;
+  private static final int ZIP64_LOCATOR_SIG=0x07064b50;
+  private static final int ZIP64_EXTRA_ID=0x0001;
+  private static final long ZIP64_MAGIC=0xFFFFFFFFL;
+  private static final long ZIP64_LOCAL_THRESHOLD=0xF0000000L;
+  private static final int VERSION_DEFAULT=20;
+  private static final int VERSION_ZIP64=45;
+  private static final int MADE_BY_UNIX=3<<8;
+  private static final int FLAG_UTF8=0x0800;
+  private static final int MODE_FILE=0100644;
+  private static final int MODE_DIR=040755;
+  private static final int DOS_DIR_ATTRIBUTE=0x10;
+  private static final Charset UTF8=Charset.forName("UTF-8");
+  private static final boolean SYNC_FLUSH=hasSyncFlush();
+
+  private final FileChannel channel;
+  private final BufferedOutputStream out;
+  private final ExecutorService pool;
+  private final int maxInFlight;
+  private final LinkedList<Piece> pending=new LinkedList<Piece>();
+  private final ArrayList<Record> records=new ArrayList<Record>();
+  private final Calendar calendar=Calendar.getInstance();
+  private long position=0;
+
+  // per-thread Deflaters, reused for every file that the
+  // thread compresses for this writer; all of them are
+  // tracked, so shutdown() can release their native side,
+  // rather than leaving it on long-lived threads
+
+  private final ArrayList<Deflater> deflaters=new ArrayList<Deflater>();
+  private final ThreadLocal<Deflater> deflater=new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      Deflater result=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+      synchronized(deflaters) {
+        deflaters.add(result);
+      }
+
+      return(result);
+    }
+  };
+
+  static void zip(File srcDir, File zipFile, ZipUtils.Options options)
+    throws IOException {
+    String root=srcDir.getCanonicalPath();
+    String target=zipFile.getCanonicalPath();
+
+    if (!srcDir.isDirectory()) {
+      throw new IOException("Not a directory: "+srcDir);
+    }
+
+    if (target.startsWith(root+File.separator)) {
+      throw new IOException("Cannot write a ZIP archive inside the directory being zipped");
+    }
+
+    FileOutputStream fos=new FileOutputStream(zipFile);
+    ZipWriter writer=new ZipWriter(fos, options.threadCount);
+    boolean succeeded=false;
+
+    try {
+      writer.addTree(srcDir);
+      writer.finish();
+
+      if (options.durability!=ZipUtils.Durability.NONE) {
+        fos.getFD().sync();
+      }
+
+      succeeded=true;
+    }
+    finally {
+      writer.shutdown();
+      fos.close();
+
+      if (!succeeded) {
+        zipFile.delete();
+      }
+    }
+  }
+
+  private ZipWriter(FileOutputStream fos, int threadCount) {
+    channel=fos.getChannel();
+    out=new BufferedOutputStream(fos, 65536);
+    pool=threadCount>1 ? Executors.newFixedThreadPool(threadCount) : null;
+    maxInFlight=Math.max(1, threadCount)*4;
+  }
+
+  private static boolean hasSyncFlush() {
+    try {
+      Deflater.class.getMethod("deflate", byte[].class, int.class,
+        int.class, int.class);
+
+      return(true);
+    }
+    catch (NoSuchMethodException e) {
+      return(false);
+    }
+  }
+
+  // walks the tree breadth-first without recursion, never
+  // following symlinks out of it
+
+  private void addTree(File srcDir) throws IOException {
+    LinkedList<File> dirs=new LinkedList<File>();
+    LinkedList<String> prefixes=new LinkedList<String>();
+
+    dirs.add(srcDir);
+    prefixes.add("");
+
+    while (!dirs.isEmpty()) {
+      File dir=dirs.removeFirst();
+      String prefix=prefixes.removeFirst();
+      File[] children=dir.listFiles();
+
+      if (children==null) {
+        throw new IOException("Could not list "+dir);
+      }
+
+      Arrays.sort(children);
+
+      for (File child : children) {
+        if (ZipUtils.isSymlink(child)) {
+          continue;
+        }
+
+        String name=prefix+child.getName();
+
+        if (!isSafeName(name)) {
+          throw new IOException("Cannot safely store "+child);
+        }
+
+        if (child.isDirectory()) {
+          addDirectory(name+"/", child);
+          dirs.add(child);
+          prefixes.add(name+"/");
+        }
+        else if (child.isFile()) {
+          addFile(name, child);
+        }
+      }
+    }
+  }
+
+  private static boolean isSafeName(String name) {
+    try {
+      return(EntryPathValidator.normalize(name).equals(name));
+    }
+    catch (IllegalStateException e) {
+      return(false);
+    }
+  }
+
+  private void addDirectory(String name, File dir) throws IOException {
+    Record record=new Record(name, dir.lastModified(), true);
+
+    record.method=ZipIndex.METHOD_STORED;
+    enqueue(new Piece(Piece.WHOLE, record, null));
+  }
+
+  private void addFile(String name, final File file) throws IOException {
+    final Record record=new Record(name, file.lastModified(), false);
+    final long length=file.length();
+
+    if (length<=BLOCK_SIZE) {
+      enqueue(new Piece(Piece.WHOLE, record, submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return(compressSmall(file, record));
+        }
+      })));
+    }
+    else if (SYNC_FLUSH) {
+      addLargeFile(record, file, length);
+    }
+    else {
+      // no way to compress blocks independently, so compress
+      // the whole file in one go, after everything before it
+
+      drain(0);
+      writeStreamed(record, file, length);
+    }
+  }
+
+  private void addLargeFile(Record record, File file, long length)
+    throws IOException {
+    InputStream in=new FileInputStream(file);
+    CRC32 crc=new CRC32();
+    byte[] previous=null;
+
+    record.method=ZipIndex.METHOD_DEFLATED;
+    record.zip64Local=length>=ZIP64_LOCAL_THRESHOLD;
+    enqueue(new Piece(Piece.START, record, null));
+
+    try {
+      byte[] block=readBlock(in);
+
+      while (block!=null) {
+        final byte[] data=block;
+        final byte[] dictionary=previous;
+        byte[] next=readBlock(in);
+        final boolean last=(next==null);
+
+        crc.update(data);
+        record.size+=data.length;
+        enqueue(new Piece(Piece.BLOCK, record,
+          submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+              return(compressBlock(data, dictionary, last));
+            }
+          })));
+        previous=data;
+        block=next;
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    if (record.size!=length) {
+      throw new IOException("File changed while being zipped: "+
+        record.name);
+    }
+
+    record.crc=crc.getValue();
+    enqueue(new Piece(Piece.END, record, null));
+  }
+
+  private static byte[] readBlock(InputStream in) throws IOException {
+    byte[] block=new byte[BLOCK_SIZE];
+    int filled=0;
+    int count;
+
+    while (filled<BLOCK_SIZE &&
+      (count=in.read(block, filled, BLOCK_SIZE-filled))!=-1) {
+      filled+=count;
+    }
+
+    if (filled==0) {
+      return(null);
+    }
+
+    return(filled==BLOCK_SIZE ? block : Arrays.copyOf(block, filled));
+  }
+
+  // runs on a worker thread; fills in the record's sizes, CRC,
+  // and method, and returns the bytes to write
+
+  private byte[] compressSmall(File file, Record record)
+    throws IOException {
+    InputStream in=new FileInputStream(file);
+    byte[] data;
+
+    try {
+      data=readBlock(in);
+
+      if (data==null) {
+        data=new byte[0];
+      }
+      else if (in.read()!=-1) {
+        throw new IOException("File changed while being zipped: "+
+          record.name);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    CRC32 crc=new CRC32();
+
+    crc.update(data);
+
+    byte[] compressed=compressBlock(data, null, true);
+
+    record.crc=crc.getValue();
+    record.size=data.length;
+
+    if (compressed.length<data.length) {
+      record.method=ZipIndex.METHOD_DEFLATED;
+      record.compressedSize=compressed.length;
+
+      return(compressed);
+    }
+
+    record.method=ZipIndex.METHOD_STORED;
+    record.compressedSize=data.length;
+
+    return(data);
+  }
+
+  private byte[] compressBlock(byte[] data, byte[] dictionary,
+                               boolean last) {
+    Deflater deflater=this.deflater.get();
+    ByteArrayOutputStream result=
+      new ByteArrayOutputStream(data.length/2+64);
+    byte[] buffer=new byte[16384];
+
+    deflater.reset();
+
+    if (dictionary!=null) {
+      deflater.setDictionary(dictionary, dictionary.length-DICTIONARY_SIZE,
+        DICTIONARY_SIZE);
+    }
+
+    deflater.setInput(data);
+
+    if (last) {
+      deflater.finish();
+
+      while (!deflater.finished()) {
+        result.write(buffer, 0, deflater.deflate(buffer));
+      }
+    }
+    else {
+      int count;
+
+      do {
+        count=deflater.deflate(buffer, 0, buffer.length,
+          Deflater.SYNC_FLUSH);
+        result.write(buffer, 0, count);
+      } while (count==buffer.length);
+    }
+
+    return(result.toByteArray());
+  }
+
+  private void writeStreamed(Record record, File file, long length)
+    throws IOException {
+    InputStream in=new FileInputStream(file);
+    Deflater deflater=this.deflater.get();
+    CRC32 crc=new CRC32();
+    byte[] input=new byte[16384];
+    byte[] buffer=new byte[16384];
+    int count;
+
+    record.method=ZipIndex.METHOD_DEFLATED;
+    record.zip64Local=length>=ZIP64_LOCAL_THRESHOLD;
+    writeLocalHeader(record);
+    deflater.reset();
+
+    try {
+      while ((count=in.read(input))!=-1) {
+        crc.update(input, 0, count);
+        record.size+=count;
+        deflater.setInput(input, 0, count);
+
+        while (!deflater.needsInput()) {
+          writeData(record, buffer, deflater.deflate(buffer));
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    deflater.finish();
+
+    while (!deflater.finished()) {
+      writeData(record, buffer, deflater.deflate(buffer));
+    }
+
+    record.crc=crc.getValue();
+    patchLocalHeader(record);
+  }
+
+  private Future<byte[]> submit(Callable<byte[]> task) {
+    if (pool==null) {
+      FutureTask<byte[]> result=new FutureTask<byte[]>(task);
+
+      result.run();
+
+      return(result);
+    }
+
+    return(pool.submit(task));
+  }
+
+  private void enqueue(Piece piece) throws IOException {
+    pending.add(piece);
+    drain(maxInFlight);
+  }
+
+  private void drain(int keep) throws IOException {
+    while (pending.size()>keep) {
+      Piece piece=pending.removeFirst();
+      byte[] data=null;
+
+      if (piece.data!=null) {
+        try {
+          data=piece.data.get();
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted while zipping");
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+          }
+
+          throw new IOException("Problem compressing "+piece.record.name,
+            e.getCause());
+        }
+      }
+
+      switch (piece.kind) {
+        case Piece.WHOLE:
+          writeLocalHeader(piece.record);
+
+          if (data!=null) {
+            out.write(data);
+            position+=data.length;
+          }
+          break;
+
+        case Piece.START:
+          writeLocalHeader(piece.record);
+          break;
+
+        case Piece.BLOCK:
+          writeData(piece.record, data, data.length);
+          break;
+
+        case Piece.END:
+          patchLocalHeader(piece.record);
+          break;
+      }
+    }
+  }
+
+  private void writeData(Record record, byte[] data, int count)
+    throws IOException {
+    out.write(data, 0, count);
+    position+=count;
+    record.compressedSize+=count;
+  }
+
+  private void writeLocalHeader(Record record) throws IOException {
+    ByteBuffer header=allocate(30+record.nameBytes.length+
+      (record.zip64Local ? 20 : 0));
+
+    record.localHeaderOffset=position;
+    header.putInt(LOCAL_HEADER_SIG);
+    header.putShort((short)(record.zip64Local ? VERSION_ZIP64 :
+      VERSION_DEFAULT));
+    header.putShort((short)FLAG_UTF8);
+    header.putShort((short)record.method);
+    header.putInt((int)dosTime(record.time));
+    putSizes(header, record);
+    header.putShort((short)record.nameBytes.length);
+    header.putShort((short)(record.zip64Local ? 20 : 0));
+    header.put(record.nameBytes);
+
+    if (record.zip64Local) {
+      header.putShort((short)ZIP64_EXTRA_ID);
+      header.putShort((short)16);
+      header.putLong(record.size);
+      header.putLong(record.compressedSize);
+    }
+
+    write(header);
+  }
+
+  private void putSizes(ByteBuffer header, Record record) {
+    header.putInt((int)record.crc);
+
+    if (record.zip64Local) {
+      header.putInt((int)ZIP64_MAGIC);
+      header.putInt((int)ZIP64_MAGIC);
+    }
+    else {
+      header.putInt((int)record.compressedSize);
+      header.putInt((int)record.size);
+    }
+  }
+
+  // fills in the CRC and sizes of an entry whose local header
+  // was written before they were known
+
+  private void patchLocalHeader(Record record) throws IOException {
+    if (!record.zip64Local &&
+      (record.size>=ZIP64_MAGIC || record.compressedSize>=ZIP64_MAGIC)) {
+      throw new IOException("File grew too large while being zipped: "+
+        record.name);
+    }
+
+    out.flush();
+
+    ByteBuffer sizes=allocate(12);
+
+    putSizes(sizes, record);
+    sizes.flip();
+    writeAt(sizes, record.localHeaderOffset+14);
+
+    if (record.zip64Local) {
+      ByteBuffer extra=allocate(16);
+
+      extra.putLong(record.size);
+      extra.putLong(record.compressedSize);
+      extra.flip();
+      writeAt(extra, record.localHeaderOffset+30+record.nameBytes.length+4);
+    }
+  }
+
+  private void finish() throws IOException {
+    drain(0);
+
+    long centralDirectoryOffset=position;
+
+    for (Record record : records) {
+      writeCentralHeader(record);
+    }
+
+    long centralDirectorySize=position-centralDirectoryOffset;
+    boolean zip64=records.size()>=0xFFFF ||
+      centralDirectoryOffset>=ZIP64_MAGIC ||
+      centralDirectorySize>=ZIP64_MAGIC;
+
+    if (zip64) {
+      long zip64EndOffset=position;
+      ByteBuffer end=allocate(56+20);
+
+      end.putInt(ZIP64_END_SIG);
+      end.putLong(44);
+      end.putShort((short)(MADE_BY_UNIX | VERSION_ZIP64));
+      end.putShort((short)VERSION_ZIP64);
+      end.putInt(0);
+      end.putInt(0);
+      end.putLong(records.size());
+      end.putLong(records.size());
+      end.putLong(centralDirectorySize);
+      end.putLong(centralDirectoryOffset);
+      end.putInt(ZIP64_LOCATOR_SIG);
+      end.putInt(0);
+      end.putLong(zip64EndOffset);
+      end.putInt(1);
+      write(end);
+    }
+
+    ByteBuffer end=allocate(22);
+
+    end.putInt(END_SIG);
+    end.putShort((short)0);
+    end.putShort((short)0);
+    end.putShort((short)Math.min(records.size(), 0xFFFF));
+    end.putShort((short)Math.min(records.size(), 0xFFFF));
+    end.putInt((int)Math.min(centralDirectorySize, ZIP64_MAGIC));
+    end.putInt((int)Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+    end.putShort((short)0);
+    write(end);
+    out.flush();
+  }
+
+  private void writeCentralHeader(Record record) throws IOException {
+    boolean bigSize=record.size>=ZIP64_MAGIC;
+    boolean bigCompressed=record.compressedSize>=ZIP64_MAGIC;
+    boolean bigOffset=record.localHeaderOffset>=ZIP64_MAGIC;
+    int extraLength=(bigSize ? 8 : 0)+(bigCompressed ? 8 : 0)+
+      (bigOffset ? 8 : 0);
+
+    if (extraLength>0) {
+      extraLength+=4;
+    }
+
+    int version=extraLength>0 || record.zip64Local ? VERSION_ZIP64 :
+      VERSION_DEFAULT;
+    ByteBuffer header=allocate(46+record.nameBytes.length+extraLength);
+
+    header.putInt(CENTRAL_HEADER_SIG);
+    header.putShort((short)(MADE_BY_UNIX | version));
+    header.putShort((short)version);
+    header.putShort((short)FLAG_UTF8);
+    header.putShort((short)record.method);
+    header.putInt((int)dosTime(record.time));
+    header.putInt((int)record.crc);
+    header.putInt((int)(bigCompressed ? ZIP64_MAGIC : record.compressedSize));
+    header.putInt((int)(bigSize ? ZIP64_MAGIC : record.size));
+    header.putShort((short)record.nameBytes.length);
+    header.putShort((short)extraLength);
+    header.putShort((short)0);
+    header.putShort((short)0);
+    header.putShort((short)0);
+    header.putInt(record.directory ? (MODE_DIR<<16) | DOS_DIR_ATTRIBUTE :
+      MODE_FILE<<16);
+    header.putInt((int)(bigOffset ? ZIP64_MAGIC : record.localHeaderOffset));
+    header.put(record.nameBytes);
+
+    if (extraLength>0) {
+      header.putShort((short)ZIP64_EXTRA_ID);
+      header.putShort((short)(extraLength-4));
+
+      if (bigSize) {
+        header.putLong(record.size);
+      }
+
+      if (bigCompressed) {
+        header.putLong(record.compressedSize);
+      }
+
+      if (bigOffset) {
+        header.putLong(record.localHeaderOffset);
+      }
+    }
+
+    write(header);
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return(ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    out.write(buffer.array(), 0, buffer.position());
+    position+=buffer.position();
+  }
+
+  private void writeAt(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      offset+=channel.write(buffer, offset);
+    }
+  }
+
+  private long dosTime(long time) {
+    calendar.setTimeInMillis(time);
+
+    int year=calendar.get(Calendar.YEAR);
+
+    if (year<1980) {
+      return((1<<21) | (1<<16));
+    }
+
+    return(((year-1980)<<25) |
+      ((calendar.get(Calendar.MONTH)+1)<<21) |
+      (calendar.get(Calendar.DAY_OF_MONTH)<<16) |
+      (calendar.get(Calendar.HOUR_OF_DAY)<<11) |
+      (calendar.get(Calendar.MINUTE)<<5) |
+      (calendar.get(Calendar.SECOND)>>1));
+  }
+
+  // the pool has to be finished before the Deflaters are
+  // ended, as its threads may still be using them; if we are
+  // interrupted while waiting, they are left to the garbage
+  // collector
+
+  private void shutdown() throws IOException {
+    if (pool!=null) {
+      pool.shutdownNow();
+
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted while zipping");
+      }
+    }
+
+    synchronized(deflaters) {
+      for (Deflater d : deflaters) {
+        d.end();
+      }
+
+      deflaters.clear();
+    }
+  }
+
+  private class Record {
+    final String name;
+    final byte[] nameBytes;
+    final long time;
+    final boolean directory;
+    int method;
+    long crc;
+    long size;
+    long compressedSize;
+    long localHeaderOffset;
+    boolean zip64Local=false;
+
+    Record(String name, long time, boolean directory) {
+      this.name=name;
+      this.time=time;
+      this.directory=directory;
+      nameBytes=name.getBytes(UTF8);
+      records.add(this);
+    }
+  }
+
+  // one thing to write, in archive order: a whole entry, or
+  // the start, one block, or the end of a large file
+
+  private static class Piece {
+    static final int WHOLE=0;
+    static final int START=1;
+    static final int BLOCK=2;
+    static final int END=3;
+
+    final int kind;
+    final Record record;
+    final Future<byte[]> data;
+
+    Piece(int kind, Record record, Future<byte[]> data) {
+      this.kind=kind;
+      this.record=record;
+      this.data=data;
+    }
+  }
+}
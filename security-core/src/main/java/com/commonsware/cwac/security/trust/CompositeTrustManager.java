@@ -36,11 +36,13 @@ public class CompositeTrustManager implements X509TrustManager {
 
   protected CompositeTrustManager(X509TrustManager[] mgrs,
                                   boolean matchAll) {
+    // mode first, as it cannot be changed once 2+ are added
+
+    setMatchAll(matchAll);
+
     if (mgrs != null) {
       addAll(mgrs);
     }
-
-    setMatchAll(matchAll);
   }
 
   public void add(X509TrustManager mgr) {
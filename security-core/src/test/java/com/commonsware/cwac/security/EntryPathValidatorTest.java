@@ -0,0 +1,150 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+
+public class EntryPathValidatorTest {
+  @Rule
+  public TemporaryFolder work=new TemporaryFolder();
+
+  @Test
+  public void plain() {
+    Assert.assertEquals("a/b/c.txt",
+      EntryPathValidator.normalize("a/b/c.txt"));
+    Assert.assertEquals("a/b", EntryPathValidator.normalize("a/b/"));
+  }
+
+  @Test
+  public void backslashes() {
+    Assert.assertEquals("a/b/c.txt",
+      EntryPathValidator.normalize("a\\b\\c.txt"));
+    Assert.assertEquals("a/b/c.txt",
+      EntryPathValidator.normalize("a\\b/c.txt"));
+  }
+
+  @Test
+  public void emptyAndDotSegments() {
+    Assert.assertEquals("a/b", EntryPathValidator.normalize("a//./b"));
+    Assert.assertEquals("a/b", EntryPathValidator.normalize("./a/b/."));
+  }
+
+  @Test
+  public void parentSegments() {
+    Assert.assertEquals("b", EntryPathValidator.normalize("a/../b"));
+    Assert.assertEquals("a/c", EntryPathValidator.normalize("a/b/../c"));
+    Assert.assertEquals("c", EntryPathValidator.normalize("a\\b\\..\\..\\c"));
+  }
+
+  @Test
+  public void destinationItself() {
+    Assert.assertEquals("", EntryPathValidator.normalize(""));
+    Assert.assertEquals("", EntryPathValidator.normalize("./"));
+    Assert.assertEquals("", EntryPathValidator.normalize("a/.."));
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void parentOutside() {
+    EntryPathValidator.normalize("../evil.txt");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void parentOutsideLater() {
+    EntryPathValidator.normalize("a/../../evil.txt");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void parentOutsideBackslashes() {
+    EntryPathValidator.normalize("a\\..\\..\\evil.txt");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void nul() {
+    EntryPathValidator.normalize("safe.txt\0../../evil.txt");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void absolute() {
+    EntryPathValidator.normalize("/etc/passwd");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void absoluteBackslash() {
+    EntryPathValidator.normalize("\\windows\\system32");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void driveLetter() {
+    EntryPathValidator.normalize("C:\\windows\\system32");
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void driveRelative() {
+    EntryPathValidator.normalize("c:evil.txt");
+  }
+
+  @Test
+  public void colonLater() {
+    Assert.assertEquals("ab:c", EntryPathValidator.normalize("ab:c"));
+  }
+
+  @Test
+  public void mkdirs() throws IOException {
+    File root=work.getRoot();
+    EntryPathValidator validator=new EntryPathValidator(root);
+
+    validator.mkdirs("a/b/c");
+    validator.mkdirsForFile("a/b/d/file.txt");
+    validator.mkdirsForFile("top.txt");
+    validator.mkdirs("");
+
+    Assert.assertTrue(new File(root, "a/b/c").isDirectory());
+    Assert.assertTrue(new File(root, "a/b/d").isDirectory());
+    Assert.assertFalse(new File(root, "a/b/d/file.txt").exists());
+    Assert.assertEquals(1, root.list().length);
+  }
+
+  // directories already created are not checked again, so
+  // one removed behind the validator's back stays removed
+
+  @Test
+  public void mkdirsOnlyOnce() throws IOException {
+    File root=work.getRoot();
+    EntryPathValidator validator=new EntryPathValidator(root);
+
+    validator.mkdirs("a/b");
+    Assert.assertTrue(new File(root, "a/b").delete());
+    validator.mkdirs("a/b");
+    Assert.assertFalse(new File(root, "a/b").exists());
+  }
+
+  // a prefix of a segment is not that directory
+
+  @Test
+  public void mkdirsSegmentPrefix() throws IOException {
+    File root=work.getRoot();
+    EntryPathValidator validator=new EntryPathValidator(root);
+
+    validator.mkdirs("ab/c");
+    validator.mkdirs("a/c");
+    Assert.assertTrue(new File(root, "a/c").isDirectory());
+    Assert.assertTrue(new File(root, "ab/c").isDirectory());
+  }
+}
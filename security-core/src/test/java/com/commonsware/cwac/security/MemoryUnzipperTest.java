@@ -0,0 +1,112 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that unzipToMemory() from a stream, where entry
+ * sizes need not be known up front, holds no more than its
+ * budget, counting spare array capacity, not just the bytes
+ * written.
+ */
+public class MemoryUnzipperTest {
+  private static final int BUDGET=100000;
+
+  @Test
+  public void sinkGrowsWithinBudget() {
+    MemoryUnzipper.Sink sink=new MemoryUnzipper.Sink(16, BUDGET);
+    byte[] chunk=new byte[1000];
+
+    for (int i=0; i<70; i++) {
+      sink.write(chunk, 0, chunk.length);
+      Assert.assertTrue(sink.capacity()<=BUDGET);
+    }
+
+    Assert.assertEquals(70000, sink.toBuffer().remaining());
+    Assert.assertEquals(70000, sink.capacity());
+  }
+
+  @Test
+  public void sinkFillsBudgetExactly() {
+    MemoryUnzipper.Sink sink=new MemoryUnzipper.Sink(0, BUDGET);
+
+    sink.write(new byte[BUDGET], 0, BUDGET);
+    Assert.assertEquals(BUDGET, sink.capacity());
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void sinkOverBudget() {
+    MemoryUnzipper.Sink sink=new MemoryUnzipper.Sink(16, BUDGET);
+
+    sink.write(new byte[BUDGET], 0, BUDGET);
+    sink.write(0);
+  }
+
+  @Test
+  public void streamWithinBudget()
+    throws IOException, ZipUtils.UnzipException {
+    Map<String, ByteBuffer> contents=
+      ZipUtils.unzipToMemory(zipOf(70000, 20000), new ZipUtils.Options(),
+        BUDGET);
+
+    Assert.assertEquals(2, contents.size());
+    Assert.assertEquals(70000, contents.get("file0.bin").remaining());
+    Assert.assertEquals(20000, contents.get("file1.bin").remaining());
+    Assert.assertEquals(1, contents.get("file1.bin").get(19999));
+  }
+
+  @Test
+  public void streamOverBudget() throws IOException {
+    try {
+      ZipUtils.unzipToMemory(zipOf(70000, 40000), new ZipUtils.Options(),
+        BUDGET);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  // deflated by ZipOutputStream, so the local headers do not
+  // give the sizes, and the sinks have to grow
+
+  private static ByteArrayInputStream zipOf(int... sizes) throws IOException {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+    ZipOutputStream out=new ZipOutputStream(bytes);
+
+    for (int i=0; i<sizes.length; i++) {
+      byte[] contents=new byte[sizes[i]];
+
+      contents[sizes[i]-1]=1;
+      out.putNextEntry(new ZipEntry("file"+i+".bin"));
+      out.write(contents);
+      out.closeEntry();
+    }
+
+    out.close();
+
+    return(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+}
@@ -0,0 +1,128 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import com.commonsware.cwac.security.trust.CompositeTrustManager;
+import junit.framework.Assert;
+import org.junit.Test;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.X509TrustManager;
+
+public class CompositeTrustManagerTest {
+  private static final X509Certificate[] CHAIN=new X509Certificate[0];
+
+  @Test
+  public void matchAllMany() throws CertificateException {
+    CompositeTrustManager mgr=
+      CompositeTrustManager.matchAll(new StubTrustManager(true),
+        new StubTrustManager(true), new StubTrustManager(true));
+
+    Assert.assertTrue(mgr.isMatchAll());
+    Assert.assertEquals(3, mgr.size());
+    mgr.checkServerTrusted(CHAIN, "RSA");
+    mgr.checkClientTrusted(CHAIN, "RSA");
+  }
+
+  @Test
+  public void matchAllOneRejects() {
+    CompositeTrustManager mgr=
+      CompositeTrustManager.matchAll(new StubTrustManager(true),
+        new StubTrustManager(false));
+
+    Assert.assertTrue(mgr.isMatchAll());
+    assertRejected(mgr);
+  }
+
+  @Test
+  public void matchAnyOneAccepts() throws CertificateException {
+    CompositeTrustManager mgr=
+      CompositeTrustManager.matchAny(new StubTrustManager(false),
+        new StubTrustManager(false), new StubTrustManager(true));
+
+    Assert.assertFalse(mgr.isMatchAll());
+    Assert.assertEquals(3, mgr.size());
+    mgr.checkServerTrusted(CHAIN, "RSA");
+    mgr.checkClientTrusted(CHAIN, "RSA");
+  }
+
+  @Test
+  public void matchAnyAllReject() {
+    CompositeTrustManager mgr=
+      CompositeTrustManager.matchAny(new StubTrustManager(false),
+        new StubTrustManager(false));
+
+    Assert.assertFalse(mgr.isMatchAll());
+    assertRejected(mgr);
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void modeFixedOnceMany() {
+    CompositeTrustManager
+      .matchAny(new StubTrustManager(true), new StubTrustManager(true))
+      .setMatchAll(true);
+  }
+
+  private static void assertRejected(CompositeTrustManager mgr) {
+    try {
+      mgr.checkServerTrusted(CHAIN, "RSA");
+      Assert.fail("Did not get CertificateException!");
+    }
+    catch (CertificateException e) {
+      // expected
+    }
+
+    try {
+      mgr.checkClientTrusted(CHAIN, "RSA");
+      Assert.fail("Did not get CertificateException!");
+    }
+    catch (CertificateException e) {
+      // expected
+    }
+  }
+
+  private static class StubTrustManager implements X509TrustManager {
+    private final boolean accept;
+
+    StubTrustManager(boolean accept) {
+      this.accept=accept;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      check();
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      check();
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[0]);
+    }
+
+    private void check() throws CertificateException {
+      if (!accept) {
+        throw new CertificateException("Rejected by stub");
+      }
+    }
+  }
+}
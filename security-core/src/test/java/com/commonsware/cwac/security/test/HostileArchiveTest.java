@@ -0,0 +1,522 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import com.commonsware.cwac.security.ZipUtils;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.ZipException;
+
+/**
+ * Runs ZipUtils against the archives from HostileArchives,
+ * checking both that each is handled safely and that it is
+ * handled cheaply: with bounded work (bytes inflated, bytes
+ * read, entries visited) and bounded allocation, however much
+ * the archive would unzip to. Wall-clock time is not checked,
+ * as it depends too much on the machine running the tests.
+ */
+public class HostileArchiveTest {
+  private static final long MAX_REJECT_INFLATED=1024*1024;
+  private static final long MAX_REJECT_BYTES=32*1024*1024;
+  private static final long MAX_BYTES_PER_ENTRY=1024;
+  private static final long DEFAULT_MAX_SIZE=64*1024*1024;
+  private static final int MAX_CLEANUP_PASSES=100;
+  @ClassRule
+  public static TemporaryFolder corpus=new TemporaryFolder();
+  @Rule
+  public TemporaryFolder work=new TemporaryFolder();
+  private static File nestedBomb;
+  private static File highRatio;
+  private static File overlapping;
+  private static File manyTiny;
+  private static File longName;
+  private static File deepChain;
+  private static File duplicates;
+  private static File lyingSize;
+  private static File lyingCrc;
+  private static File lyingStoredCrc;
+  private static File lyingLocalName;
+  private static File overflowingSizes;
+
+  @BeforeClass
+  public static void generate() throws IOException {
+    File dir=corpus.getRoot();
+
+    nestedBomb=HostileArchives.nestedBomb(dir);
+    highRatio=HostileArchives.highRatio(dir);
+    overlapping=HostileArchives.overlapping(dir);
+    manyTiny=HostileArchives.manyTiny(dir);
+    longName=HostileArchives.longName(dir);
+    deepChain=HostileArchives.deepChain(dir);
+    duplicates=HostileArchives.duplicates(dir);
+    lyingSize=HostileArchives.lyingSize(dir);
+    lyingCrc=HostileArchives.lyingCrc(dir);
+    lyingStoredCrc=HostileArchives.lyingStoredCrc(dir);
+    lyingLocalName=HostileArchives.lyingLocalName(dir);
+    overflowingSizes=HostileArchives.overflowingSizes(dir);
+  }
+
+  // rejected trees can be too deep for TemporaryFolder to
+  // delete, so ZipUtils gets the first go at cleaning up; a
+  // rollback may still be deleting the same tree in the
+  // background, so one pass can trip over the other
+
+  @After
+  public void cleanUp() {
+    File root=work.getRoot();
+
+    for (int pass=0; pass<MAX_CLEANUP_PASSES && root.exists(); pass++) {
+      ZipUtils.delete(root);
+    }
+
+    Assert.assertFalse(root.exists());
+  }
+
+  @Test
+  public void nestedBombUnzipsOneLevel()
+    throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(work.getRoot(), "result");
+    Work done=new Work();
+
+    ZipUtils.unzip(nestedBomb, destDir, done.track(new ZipUtils.Options()));
+    done.assertAllocated(MAX_REJECT_BYTES);
+    Assert.assertEquals(HostileArchives.FAN_OUT, done.entries());
+
+    String[] layers=destDir.list();
+    long total=0;
+
+    Assert.assertEquals(HostileArchives.FAN_OUT, layers.length);
+
+    for (String layer : layers) {
+      Assert.assertTrue(layer.endsWith(".zip"));
+      total+=new File(destDir, layer).length();
+    }
+
+    Assert.assertEquals(total, done.inflated());
+    Assert.assertTrue(total<HostileArchives.KERNEL_SIZE/100);
+  }
+
+  @Test
+  public void highRatioOverSize() {
+    assertRejected(highRatio, new ZipUtils.Options(),
+      IllegalStateException.class);
+  }
+
+  @Test
+  public void highRatioOverRatio() {
+    assertRejected(highRatio, new ZipUtils.Options()
+      .maxSize(Long.MAX_VALUE)
+      .maxCompressionRatio(100), IllegalStateException.class);
+  }
+
+  @Test
+  public void overlapping() {
+    assertRejected(overlapping, new ZipUtils.Options()
+      .maxSize(Long.MAX_VALUE), IllegalStateException.class);
+  }
+
+  @Test
+  public void manyTinyOverEntries() {
+    assertRejected(manyTiny, new ZipUtils.Options(),
+      IllegalStateException.class);
+  }
+
+  // accepted, so this holds every entry, but nothing more
+
+  @Test
+  public void manyTinyInspect() throws ZipUtils.UnzipException {
+    Work done=new Work();
+
+    ZipUtils.inspect(manyTiny,
+      new ZipUtils.Options().maxEntries(HostileArchives.TINY_COUNT));
+    done.assertAllocated(HostileArchives.TINY_COUNT*MAX_BYTES_PER_ENTRY);
+  }
+
+  @Test
+  public void longName() {
+    assertRejected(longName, new ZipUtils.Options(), IOException.class);
+  }
+
+  @Test
+  public void deepChainOverDepth() {
+    assertRejected(deepChain, new ZipUtils.Options().maxDepth(64),
+      IllegalStateException.class);
+  }
+
+  @Test
+  public void deepChain() {
+    assertRejected(deepChain, new ZipUtils.Options(), IOException.class);
+  }
+
+  @Test
+  public void duplicates() {
+    assertRejected(duplicates, new ZipUtils.Options(),
+      IllegalStateException.class);
+  }
+
+  @Test
+  public void lyingSize() {
+    assertRejected(lyingSize, new ZipUtils.Options(), ZipException.class);
+  }
+
+  // with no central directory, the lie only shows when the
+  // entry ends, so this is stopped by the size limit instead,
+  // before reading all of the archive
+
+  @Test
+  public void lyingSizeStreamed() throws IOException {
+    File destDir=new File(work.getRoot(), "result");
+    Work done=new Work();
+    CountingInputStream in=
+      new CountingInputStream(new FileInputStream(lyingSize));
+
+    try {
+      ZipUtils.unzip(in, destDir, done.track(new ZipUtils.Options()));
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertTrue(done.inflated()<=DEFAULT_MAX_SIZE);
+      Assert.assertTrue("read "+in.count+" bytes",
+        in.count<lyingSize.length());
+      done.assertAllocated(MAX_REJECT_BYTES);
+      Assert.assertFalse(destDir.exists());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // a stream has no central directory to skip entries with,
+  // so entries that the filter rejects still count, and still
+  // have to get past the limits
+
+  @Test
+  public void manyTinyFilteredStreamed() throws IOException {
+    assertRejectedStreamed(manyTiny, new ZipUtils.Options()
+      .filter(ZipUtils.EntryFilter.prefixes("nothing/")));
+  }
+
+  @Test
+  public void highRatioFilteredStreamed() throws IOException {
+    assertRejectedStreamed(highRatio, new ZipUtils.Options()
+      .filter(ZipUtils.EntryFilter.prefixes("nothing/")));
+  }
+
+  @Test
+  public void highRatioFilteredOverRatioStreamed() throws IOException {
+    assertRejectedStreamed(highRatio, new ZipUtils.Options()
+      .maxSize(Long.MAX_VALUE)
+      .maxCompressionRatio(100)
+      .filter(ZipUtils.EntryFilter.prefixes("nothing/")));
+  }
+
+  @Test
+  public void manyTinyFilteredToMemory() throws IOException {
+    assertRejectedToMemory(manyTiny, new ZipUtils.Options()
+      .filter(ZipUtils.EntryFilter.prefixes("nothing/")));
+  }
+
+  @Test
+  public void highRatioFilteredToMemory() throws IOException {
+    assertRejectedToMemory(highRatio, new ZipUtils.Options()
+      .maxSize(Long.MAX_VALUE)
+      .maxCompressionRatio(100)
+      .filter(ZipUtils.EntryFilter.prefixes("nothing/")));
+  }
+
+  @Test
+  public void lyingCrc() {
+    assertRejected(lyingCrc, new ZipUtils.Options(), ZipException.class);
+  }
+
+  @Test
+  public void lyingStoredCrc() {
+    assertRejected(lyingStoredCrc, new ZipUtils.Options(), ZipException.class);
+  }
+
+  // the updater records the CRC-32 from the central directory
+  // for each file, so a bad one must not get that far
+
+  @Test
+  public void lyingStoredCrcUpdate() throws IOException {
+    File destDir=new File(work.getRoot(), "updated");
+
+    try {
+      ZipUtils.update(lyingStoredCrc, destDir, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof ZipException);
+      Assert.assertFalse(new File(destDir, "crc.txt").exists());
+    }
+  }
+
+  // the central directory is what counts, so this is unzipped,
+  // just not where the local header says
+
+  @Test
+  public void lyingLocalName() throws IOException, ZipUtils.UnzipException {
+    File root=work.getRoot();
+    File destDir=new File(root, "result");
+
+    ZipUtils.unzip(lyingLocalName, destDir, new ZipUtils.Options());
+    Assert.assertTrue(new File(destDir, "harmless.txt").isFile());
+    Assert.assertEquals(1, destDir.list().length);
+    Assert.assertFalse(new File(root, "evil.txt").exists());
+    Assert.assertFalse(new File(root.getParentFile(), "evil.txt").exists());
+  }
+
+  @Test
+  public void overflowingSizes() {
+    assertRejected(overflowingSizes, new ZipUtils.Options(),
+      IllegalStateException.class);
+  }
+
+  @Test
+  public void overflowingSizesInspect() {
+    try {
+      ZipUtils.inspect(overflowingSizes, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void overflowingSizesToMemory() throws IOException {
+    try {
+      ZipUtils.unzipToMemory(overflowingSizes, new ZipUtils.Options(),
+        1024*1024);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void rejectionCheaperThanExtraction()
+    throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(work.getRoot(), "result");
+    Work extraction=new Work();
+
+    ZipUtils.unzip(highRatio, destDir, extraction.track(new ZipUtils.Options()
+      .maxSize(Long.MAX_VALUE)
+      .durability(ZipUtils.Durability.NONE)));
+
+    Assert.assertEquals(HostileArchives.KERNEL_SIZE,
+      new File(destDir, "zeros.bin").length());
+    Assert.assertEquals(HostileArchives.KERNEL_SIZE, extraction.inflated());
+
+    Work rejection=
+      assertRejected(lyingSize, new ZipUtils.Options(), ZipException.class);
+
+    Assert.assertTrue(rejection.inflated()<extraction.inflated()/100);
+  }
+
+  private void assertRejectedStreamed(File zip, ZipUtils.Options options)
+    throws IOException {
+    File destDir=new File(work.getRoot(), "rejected");
+    CountingInputStream in=
+      new CountingInputStream(new FileInputStream(zip));
+
+    try {
+      ZipUtils.unzip(in, destDir, options);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof IllegalStateException);
+      Assert.assertTrue("read "+in.count+" bytes", in.count<zip.length());
+      Assert.assertFalse(destDir.exists());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void assertRejectedToMemory(File zip, ZipUtils.Options options)
+    throws IOException {
+    CountingInputStream in=
+      new CountingInputStream(new FileInputStream(zip));
+
+    try {
+      ZipUtils.unzipToMemory(in, options, 1024*1024);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        e.getCause() instanceof IllegalStateException);
+      Assert.assertTrue("read "+in.count+" bytes", in.count<zip.length());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private Work assertRejected(File zip, ZipUtils.Options options,
+                              Class<? extends Throwable> cause) {
+    File destDir=new File(work.getRoot(), "rejected");
+    Work done=new Work();
+
+    try {
+      ZipUtils.unzip(zip, destDir, done.track(options));
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      done.assertRejected();
+      Assert.assertTrue(String.valueOf(e.getCause()),
+        cause.isInstance(e.getCause()));
+      Assert.assertFalse(destDir.exists());
+    }
+    catch (IOException e) {
+      Assert.fail(e.toString());
+    }
+
+    return(done);
+  }
+
+  /**
+   * Work done by an unzip: bytes inflated and entries
+   * finished, as reported to its listener, plus allocation
+   * on this thread since construction. Allocation is only
+   * tracked where the JVM supports it.
+   */
+  private static class Work implements ZipUtils.UnzipListener {
+    private final long allocated=allocated();
+    private ZipUtils.UnzipStats last;
+
+    ZipUtils.Options track(ZipUtils.Options options) {
+      return(options.listener(this).progressInterval(0));
+    }
+
+    @Override
+    public synchronized void onProgress(ZipUtils.UnzipStats stats) {
+      record(stats);
+    }
+
+    @Override
+    public synchronized void onComplete(ZipUtils.UnzipStats stats) {
+      record(stats);
+    }
+
+    synchronized long inflated() {
+      return(last==null ? 0 : last.getUncompressedBytes());
+    }
+
+    synchronized int entries() {
+      return(last==null ? 0 : last.getEntries());
+    }
+
+    void assertRejected() {
+      long bytes=inflated();
+
+      Assert.assertTrue("inflated "+bytes+" bytes",
+        bytes<MAX_REJECT_INFLATED);
+      assertAllocated(MAX_REJECT_BYTES);
+    }
+
+    void assertAllocated(long maxBytes) {
+      if (allocated>=0) {
+        long bytes=allocated()-allocated;
+
+        Assert.assertTrue("allocated "+bytes+" bytes",
+          bytes<maxBytes);
+      }
+    }
+
+    // with several threads, reports can arrive out of order
+
+    private void record(ZipUtils.UnzipStats stats) {
+      if (last==null ||
+        stats.getUncompressedBytes()>=last.getUncompressedBytes()) {
+        last=stats;
+      }
+    }
+
+    private static long allocated() {
+      ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sun=
+          (com.sun.management.ThreadMXBean)threads;
+
+        if (sun.isThreadAllocatedMemorySupported() &&
+          sun.isThreadAllocatedMemoryEnabled()) {
+          return(sun.getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+      }
+
+      return(-1);
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long count=0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result=super.read();
+
+      if (result>=0) {
+        count++;
+      }
+
+      return(result);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+      throws IOException {
+      int result=super.read(buffer, offset, length);
+
+      if (result>0) {
+        count+=result;
+      }
+
+      return(result);
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      long result=super.skip(byteCount);
+
+      count+=result;
+
+      return(result);
+    }
+  }
+}
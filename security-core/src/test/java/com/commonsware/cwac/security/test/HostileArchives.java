@@ -0,0 +1,490 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Generates hostile and stress archives for the tests, so the
+ * corpus does not have to be checked in. The ZIP structures
+ * are written by hand, rather than via ZipOutputStream, as
+ * that refuses to write most of these. Everything is
+ * deterministic: no timestamps, no randomness, so the same
+ * bytes come out on every run.
+ */
+final class HostileArchives {
+  /**
+   * Size of the run of zeros used for the bombs. Bigger than
+   * ZipUtils' default size limit on its own.
+   */
+  static final int KERNEL_SIZE=128*1024*1024;
+  static final int TINY_COUNT=100000;
+  static final int DEEP_LEVELS=30000;
+  static final int FAN_OUT=16;
+  private static final Charset UTF8=Charset.forName("UTF-8");
+  private static Data kernel;
+
+  /**
+   * A 42.zip-style bomb: FAN_OUT archives, each holding
+   * FAN_OUT archives, each holding KERNEL_SIZE zeros.
+   */
+  static File nestedBomb(File dir) throws IOException {
+    ZipBuilder kernelZip=new ZipBuilder();
+
+    kernelZip.add("kernel.bin", kernel());
+
+    Data kernelData=Data.deflate(kernelZip.toByteArray());
+    ZipBuilder layer=new ZipBuilder();
+
+    for (int i=0; i<FAN_OUT; i++) {
+      layer.add("kernel"+i+".zip", kernelData);
+    }
+
+    Data layerData=Data.deflate(layer.toByteArray());
+    ZipBuilder outer=new ZipBuilder();
+
+    for (int i=0; i<FAN_OUT; i++) {
+      outer.add("layer"+i+".zip", layerData);
+    }
+
+    return(outer.writeTo(new File(dir, "nested.zip")));
+  }
+
+  /**
+   * One entry of KERNEL_SIZE zeros, with honest headers.
+   */
+  static File highRatio(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+
+    zip.add("zeros.bin", kernel());
+
+    return(zip.writeTo(new File(dir, "ratio.zip")));
+  }
+
+  /**
+   * A non-recursive bomb: FAN_OUT central directory entries,
+   * all pointing at the same local header and data, each
+   * unzipping to KERNEL_SIZE zeros.
+   */
+  static File overlapping(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data data=kernel();
+    long offset=zip.local("overlap0.bin", data, data.size);
+
+    for (int i=0; i<FAN_OUT; i++) {
+      zip.central("overlap"+i+".bin", data, data.size, offset);
+    }
+
+    return(zip.writeTo(new File(dir, "overlap.zip")));
+  }
+
+  /**
+   * TINY_COUNT stored one-byte entries.
+   */
+  static File manyTiny(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data data=Data.store(new byte[] {'x'});
+
+    for (int i=0; i<TINY_COUNT; i++) {
+      zip.add(String.format("tiny/%06d", i), data);
+    }
+
+    return(zip.writeTo(new File(dir, "tiny.zip")));
+  }
+
+  /**
+   * One entry whose name is the longest that a ZIP can hold,
+   * in a single path segment.
+   */
+  static File longName(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+
+    zip.add(repeat("n", 0xFFFF), Data.store(new byte[] {'x'}));
+
+    return(zip.writeTo(new File(dir, "long.zip")));
+  }
+
+  /**
+   * One entry, DEEP_LEVELS directories down.
+   */
+  static File deepChain(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+
+    zip.add(repeat("d/", DEEP_LEVELS)+"f", Data.store(new byte[] {'x'}));
+
+    return(zip.writeTo(new File(dir, "deep.zip")));
+  }
+
+  /**
+   * Two entries with the same name and different contents.
+   */
+  static File duplicates(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+
+    zip.add("dup.txt", Data.store("first".getBytes(UTF8)));
+    zip.add("dup.txt", Data.store("second".getBytes(UTF8)));
+
+    return(zip.writeTo(new File(dir, "dup.zip")));
+  }
+
+  /**
+   * KERNEL_SIZE zeros, with headers claiming a size of 1KB.
+   */
+  static File lyingSize(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data data=kernel();
+    long offset=zip.local("liar.bin", data, 1024);
+
+    zip.central("liar.bin", data, 1024, offset);
+
+    return(zip.writeTo(new File(dir, "liar-size.zip")));
+  }
+
+  /**
+   * One entry whose CRC-32 in the headers does not match its
+   * contents.
+   */
+  static File lyingCrc(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data honest=Data.deflate("not what it claims".getBytes(UTF8));
+    Data data=new Data(honest.compressed, honest.method, honest.size,
+      honest.crc ^ 0xFFFFFFFFL);
+
+    zip.add("crc.txt", data);
+
+    return(zip.writeTo(new File(dir, "liar-crc.zip")));
+  }
+
+  /**
+   * As with lyingCrc(), but with the entry stored, not
+   * deflated, so it takes the channel-to-channel copy.
+   */
+  static File lyingStoredCrc(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data honest=Data.store("not what it claims".getBytes(UTF8));
+    Data data=new Data(honest.compressed, honest.method, honest.size,
+      honest.crc ^ 0xFFFFFFFFL);
+
+    zip.add("crc.txt", data);
+
+    return(zip.writeTo(new File(dir, "liar-crc-stored.zip")));
+  }
+
+  /**
+   * One entry whose local header names a path outside of the
+   * destination, while its central directory entry does not.
+   */
+  static File lyingLocalName(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    Data data=Data.store("harmless".getBytes(UTF8));
+    long offset=zip.local("../../evil.txt", data, data.size);
+
+    zip.central("harmless.txt", data, data.size, offset);
+
+    return(zip.writeTo(new File(dir, "liar-name.zip")));
+  }
+
+  /**
+   * Two entries, declaring 1000 bytes and Long.MAX_VALUE-500
+   * bytes (the latter via a ZIP64 extra field), which sum to
+   * a negative number if added without care.
+   */
+  static File overflowingSizes(File dir) throws IOException {
+    ZipBuilder zip=new ZipBuilder();
+    long offset;
+
+    zip.add("small.bin", Data.store(new byte[1000]));
+
+    Data data=Data.store(new byte[] {'x'});
+
+    offset=zip.local("huge.bin", data, Long.MAX_VALUE-500);
+    zip.central("huge.bin", data, Long.MAX_VALUE-500, offset);
+
+    return(zip.writeTo(new File(dir, "overflowing-sizes.zip")));
+  }
+
+  private static synchronized Data kernel() throws IOException {
+    if (kernel==null) {
+      kernel=Data.deflateZeros(KERNEL_SIZE);
+    }
+
+    return(kernel);
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder buf=new StringBuilder(s.length()*count);
+
+    for (int i=0; i<count; i++) {
+      buf.append(s);
+    }
+
+    return(buf.toString());
+  }
+
+  /**
+   * An entry's data, as it sits in the archive, with what is
+   * needed to describe it in the headers.
+   */
+  static class Data {
+    final byte[] compressed;
+    final int method;
+    final long size;
+    final long crc;
+
+    Data(byte[] compressed, int method, long size, long crc) {
+      this.compressed=compressed;
+      this.method=method;
+      this.size=size;
+      this.crc=crc;
+    }
+
+    static Data store(byte[] contents) {
+      CRC32 crc=new CRC32();
+
+      crc.update(contents);
+
+      return(new Data(contents, 0, contents.length, crc.getValue()));
+    }
+
+    static Data deflate(byte[] contents) {
+      CRC32 crc=new CRC32();
+
+      crc.update(contents);
+
+      return(new Data(deflate(contents, 1), 8, contents.length,
+        crc.getValue()));
+    }
+
+    static Data deflateZeros(int size) {
+      byte[] zeros=new byte[1024*1024];
+      CRC32 crc=new CRC32();
+
+      for (int i=0; i<size/zeros.length; i++) {
+        crc.update(zeros);
+      }
+
+      return(new Data(deflate(zeros, size/zeros.length), 8, size,
+        crc.getValue()));
+    }
+
+    // raw deflate (no zlib wrapper), as ZIP wants, of count
+    // copies of the input
+
+    private static byte[] deflate(byte[] input, int count) {
+      Deflater deflater=new Deflater(Deflater.BEST_COMPRESSION, true);
+      ByteArrayOutputStream out=new ByteArrayOutputStream();
+      byte[] buf=new byte[65536];
+
+      try {
+        for (int i=0; i<count; i++) {
+          deflater.setInput(input);
+
+          while (!deflater.needsInput()) {
+            out.write(buf, 0, deflater.deflate(buf));
+          }
+        }
+
+        deflater.finish();
+
+        while (!deflater.finished()) {
+          out.write(buf, 0, deflater.deflate(buf));
+        }
+      }
+      finally {
+        deflater.end();
+      }
+
+      return(out.toByteArray());
+    }
+  }
+
+  /**
+   * Writes a ZIP archive, a header at a time, with none of
+   * the consistency checks of ZipOutputStream. Local headers
+   * and central directory entries are added separately, so
+   * they can disagree, or several can share data.
+   */
+  static class ZipBuilder {
+    private final ByteArrayOutputStream body=new ByteArrayOutputStream();
+    private final ByteArrayOutputStream directory=new ByteArrayOutputStream();
+    private int count=0;
+
+    void add(String name, Data data) {
+      central(name, data, data.size, local(name, data, data.size));
+    }
+
+    /**
+     * @return the offset of the local header, for central()
+     */
+    long local(String name, Data data, long declaredSize) {
+      long offset=body.size();
+      byte[] nameBytes=name.getBytes(UTF8);
+
+      writeInt(body, 0x04034b50);
+      writeShort(body, 20);
+      writeShort(body, 0x800);
+      writeShort(body, data.method);
+      writeInt(body, 0);
+      writeInt(body, (int)data.crc);
+      writeInt(body, data.compressed.length);
+      writeSize(body, declaredSize);
+      writeShort(body, nameBytes.length);
+      writeShort(body, extraLength(declaredSize));
+      body.write(nameBytes, 0, nameBytes.length);
+      writeExtra(body, declaredSize);
+      body.write(data.compressed, 0, data.compressed.length);
+
+      return(offset);
+    }
+
+    void central(String name, Data data, long declaredSize, long offset) {
+      byte[] nameBytes=name.getBytes(UTF8);
+
+      writeInt(directory, 0x02014b50);
+      writeShort(directory, 20);
+      writeShort(directory, 20);
+      writeShort(directory, 0x800);
+      writeShort(directory, data.method);
+      writeInt(directory, 0);
+      writeInt(directory, (int)data.crc);
+      writeInt(directory, data.compressed.length);
+      writeSize(directory, declaredSize);
+      writeShort(directory, nameBytes.length);
+      writeShort(directory, extraLength(declaredSize));
+      writeShort(directory, 0);
+      writeShort(directory, 0);
+      writeShort(directory, 0);
+      writeInt(directory, 0);
+      writeInt(directory, (int)offset);
+      directory.write(nameBytes, 0, nameBytes.length);
+      writeExtra(directory, declaredSize);
+      count++;
+    }
+
+    // sizes that do not fit in 32 bits go in a ZIP64 extra
+    // field, with the header saying "look there"
+
+    private static boolean isZip64(long size) {
+      return(size>=0xFFFFFFFFL);
+    }
+
+    private static void writeSize(ByteArrayOutputStream out, long size) {
+      writeInt(out, isZip64(size) ? 0xFFFFFFFF : (int)size);
+    }
+
+    private static int extraLength(long size) {
+      return(isZip64(size) ? 12 : 0);
+    }
+
+    private static void writeExtra(ByteArrayOutputStream out, long size) {
+      if (isZip64(size)) {
+        writeShort(out, 0x0001);
+        writeShort(out, 8);
+        writeLong(out, size);
+      }
+    }
+
+    byte[] toByteArray() {
+      ByteArrayOutputStream result=new ByteArrayOutputStream();
+
+      try {
+        writeTo(result);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+
+      return(result.toByteArray());
+    }
+
+    File writeTo(File zipFile) throws IOException {
+      OutputStream out=
+        new BufferedOutputStream(new FileOutputStream(zipFile));
+
+      try {
+        writeTo(out);
+      }
+      finally {
+        out.close();
+      }
+
+      return(zipFile);
+    }
+
+    // more than 65535 entries needs the ZIP64 end records,
+    // with the classic ones saying "look there"
+
+    private void writeTo(OutputStream out) throws IOException {
+      ByteArrayOutputStream end=new ByteArrayOutputStream();
+      long directoryOffset=body.size();
+      boolean zip64=count>=0xFFFF;
+
+      if (zip64) {
+        long zip64Offset=directoryOffset+directory.size();
+
+        writeInt(end, 0x06064b50);
+        writeLong(end, 44);
+        writeShort(end, 45);
+        writeShort(end, 45);
+        writeInt(end, 0);
+        writeInt(end, 0);
+        writeLong(end, count);
+        writeLong(end, count);
+        writeLong(end, directory.size());
+        writeLong(end, directoryOffset);
+        writeInt(end, 0x07064b50);
+        writeInt(end, 0);
+        writeLong(end, zip64Offset);
+        writeInt(end, 1);
+      }
+
+      writeInt(end, 0x06054b50);
+      writeShort(end, 0);
+      writeShort(end, 0);
+      writeShort(end, zip64 ? 0xFFFF : count);
+      writeShort(end, zip64 ? 0xFFFF : count);
+      writeInt(end, directory.size());
+      writeInt(end, (int)directoryOffset);
+      writeShort(end, 0);
+
+      body.writeTo(out);
+      directory.writeTo(out);
+      end.writeTo(out);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+      out.write(value & 0xFF);
+      out.write((value>>8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+      writeShort(out, value & 0xFFFF);
+      writeShort(out, (value>>16) & 0xFFFF);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+      writeInt(out, (int)value);
+      writeInt(out, (int)(value>>32));
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import com.commonsware.cwac.security.TarUtils;
+import com.commonsware.cwac.security.ZipUtils;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class TarPaxTest {
+  private static final Charset UTF8=Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder work=new TemporaryFolder();
+
+  @Test
+  public void globalPathAndSizeIgnored() throws Exception {
+    TarBuilder tar=new TarBuilder()
+      .pax('g', "path=other.txt", "size=999", "comment=hello")
+      .file("a.txt", "hello");
+    File dest=untar(tar);
+
+    Assert.assertEquals("hello", read(new File(dest, "a.txt")));
+    Assert.assertFalse(new File(dest, "other.txt").exists());
+    Assert.assertEquals(1, dest.list().length);
+  }
+
+  @Test
+  public void globalAppliesToNoLaterEntry() throws Exception {
+    TarBuilder tar=new TarBuilder()
+      .pax('g', "path=other.txt")
+      .file("a.txt", "one")
+      .file("b.txt", "two");
+    File dest=untar(tar);
+
+    Assert.assertEquals("one", read(new File(dest, "a.txt")));
+    Assert.assertEquals("two", read(new File(dest, "b.txt")));
+    Assert.assertEquals(2, dest.list().length);
+  }
+
+  @Test
+  public void localAfterGlobal() throws Exception {
+    TarBuilder tar=new TarBuilder()
+      .pax('g', "path=other.txt")
+      .pax('x', "path=renamed.txt")
+      .file("a.txt", "hello");
+    File dest=untar(tar);
+
+    Assert.assertEquals("hello", read(new File(dest, "renamed.txt")));
+    Assert.assertEquals(1, dest.list().length);
+  }
+
+  @Test
+  public void localAppliesToNextEntryOnly() throws Exception {
+    TarBuilder tar=new TarBuilder()
+      .pax('x', "path=renamed.txt")
+      .file("a.txt", "one")
+      .file("b.txt", "two");
+    File dest=untar(tar);
+
+    Assert.assertEquals("one", read(new File(dest, "renamed.txt")));
+    Assert.assertEquals("two", read(new File(dest, "b.txt")));
+    Assert.assertEquals(2, dest.list().length);
+  }
+
+  @Test
+  public void malformedGlobal() throws Exception {
+    TarBuilder tar=new TarBuilder()
+      .raw('g', "99 path=other.txt\n".getBytes(UTF8))
+      .file("a.txt", "hello");
+
+    try {
+      untar(tar);
+      Assert.fail("Expected UnzipException");
+    }
+    catch (ZipUtils.UnzipException e) {
+      // expected
+    }
+  }
+
+  private File untar(TarBuilder tar)
+    throws ZipUtils.UnzipException, IOException {
+    File dest=new File(work.getRoot(), "dest");
+
+    TarUtils.untar(new ByteArrayInputStream(tar.build()), dest,
+      new ZipUtils.Options());
+
+    return(dest);
+  }
+
+  private static String read(File f) throws IOException {
+    InputStream in=new FileInputStream(f);
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] buf=new byte[8192];
+    int n;
+
+    try {
+      while ((n=in.read(buf))>=0) {
+        out.write(buf, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(new String(out.toByteArray(), UTF8));
+  }
+
+  // builds a ustar archive in memory, one 512-byte header per
+  // entry, contents padded out to the next block, and the two
+  // zero blocks that end the archive
+
+  private static class TarBuilder {
+    private final ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    TarBuilder file(String name, String contents) {
+      return(entry('0', name, contents.getBytes(UTF8)));
+    }
+
+    TarBuilder pax(char type, String... records) {
+      ByteArrayOutputStream meta=new ByteArrayOutputStream();
+
+      for (String record : records) {
+        byte[] body=(" "+record+"\n").getBytes(UTF8);
+        int length=body.length;
+
+        // the length prefix counts its own digits
+
+        while (length!=body.length+Integer.toString(length).length()) {
+          length=body.length+Integer.toString(length).length();
+        }
+
+        byte[] prefix=Integer.toString(length).getBytes(UTF8);
+
+        meta.write(prefix, 0, prefix.length);
+        meta.write(body, 0, body.length);
+      }
+
+      return(raw(type, meta.toByteArray()));
+    }
+
+    TarBuilder raw(char type, byte[] contents) {
+      return(entry(type, "PaxHeaders/meta", contents));
+    }
+
+    byte[] build() {
+      out.write(new byte[1024], 0, 1024);
+
+      return(out.toByteArray());
+    }
+
+    private TarBuilder entry(char type, String name, byte[] contents) {
+      byte[] header=new byte[512];
+
+      put(header, 0, name);
+      put(header, 100, "0000644");
+      put(header, 108, "0000000");
+      put(header, 116, "0000000");
+      put(header, 124, String.format("%011o", contents.length));
+      put(header, 136, "00000000000");
+      header[156]=(byte)type;
+      put(header, 257, "ustar");
+      put(header, 263, "00");
+      Arrays.fill(header, 148, 156, (byte)' ');
+
+      int sum=0;
+
+      for (byte b : header) {
+        sum+=b & 0xff;
+      }
+
+      put(header, 148, String.format("%06o", sum));
+      header[154]=0;
+      out.write(header, 0, header.length);
+      out.write(contents, 0, contents.length);
+
+      int pad=(512-contents.length%512)%512;
+
+      out.write(new byte[pad], 0, pad);
+
+      return(this);
+    }
+
+    private static void put(byte[] header, int offset, String value) {
+      byte[] bytes=value.getBytes(UTF8);
+
+      System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+  }
+}
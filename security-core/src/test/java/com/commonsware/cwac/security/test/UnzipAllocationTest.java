@@ -0,0 +1,128 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import com.commonsware.cwac.security.ZipUtils;
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks how much unzipping allocates per entry, on the
+ * calling thread, for an archive of many small entries.
+ * Reusing the I/O buffers across entries keeps this to the
+ * entry metadata and path strings; a 16KB buffer (or two) per
+ * entry would blow well past the limit.
+ */
+public class UnzipAllocationTest {
+  private static final int ENTRIES=10000;
+  private static final int ENTRY_SIZE=512;
+  private static final long MAX_BYTES_PER_ENTRY=4096;
+  @ClassRule
+  public static TemporaryFolder corpus=new TemporaryFolder();
+  @Rule
+  public TemporaryFolder work=new TemporaryFolder();
+  private static File zip;
+
+  @BeforeClass
+  public static void generate() throws IOException {
+    Random random=new Random(42);
+    byte[] contents=new byte[ENTRY_SIZE];
+
+    zip=new File(corpus.getRoot(), "many.zip");
+
+    ZipOutputStream out=new ZipOutputStream(
+      new BufferedOutputStream(new FileOutputStream(zip)));
+
+    try {
+      for (int i=0; i<ENTRIES; i++) {
+        random.nextBytes(contents);
+        out.putNextEntry(new ZipEntry("dir"+(i%100)+"/file"+i+".bin"));
+        out.write(contents);
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void unzipFile() throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(work.getRoot(), "result");
+    long start=allocated();
+
+    ZipUtils.unzip(zip, destDir, options());
+    assertPerEntry(allocated()-start);
+  }
+
+  @Test
+  public void unzipStream() throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(work.getRoot(), "result");
+    long start=allocated();
+
+    ZipUtils.unzip(new FileInputStream(zip), destDir, options());
+    assertPerEntry(allocated()-start);
+  }
+
+  // one thread, so all of the work is on the calling thread,
+  // where it can be measured
+
+  private static ZipUtils.Options options() {
+    return(new ZipUtils.Options()
+      .maxEntries(ENTRIES)
+      .threadCount(1)
+      .durability(ZipUtils.Durability.NONE));
+  }
+
+  private static void assertPerEntry(long bytes) {
+    long perEntry=bytes/ENTRIES;
+
+    Assert.assertTrue("allocated "+perEntry+" bytes per entry",
+      perEntry<MAX_BYTES_PER_ENTRY);
+  }
+
+  private static long allocated() {
+    ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sun=
+        (com.sun.management.ThreadMXBean)threads;
+
+      if (sun.isThreadAllocatedMemorySupported() &&
+        sun.isThreadAllocatedMemoryEnabled()) {
+        return(sun.getThreadAllocatedBytes(Thread.currentThread().getId()));
+      }
+    }
+
+    Assume.assumeTrue(false);
+
+    return(-1);
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.security.SafeZipArchive;
+import com.commonsware.cwac.security.ZipUtils;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class SafeZipArchiveTest {
+  private static final String TEST_DIR="test-archive";
+  private static File externalRoot;
+
+  @BeforeClass
+  public static void initOnce() {
+    externalRoot=new File(InstrumentationRegistry.getTargetContext().getExternalCacheDir(), TEST_DIR);
+  }
+
+  @Before
+  public void init() {
+    if (externalRoot.exists()) {
+      ZipUtils.delete(externalRoot);
+    }
+
+    externalRoot.mkdirs();
+  }
+
+  @Test
+  public void openNormal() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    SafeZipArchive archive=SafeZipArchive.open(asset, new ZipUtils.Options());
+
+    try {
+      Assert.assertEquals(9, archive.getNames().size());
+      Assert.assertEquals(402, archive.getSize("book/pgepub.css"));
+      Assert.assertEquals(-1, archive.getSize("book/nope.css"));
+
+      InputStream in=archive.openStream("book/0.htm");
+      byte[] buf=new byte[1024];
+      int total=0;
+      int len;
+
+      while ((len=in.read(buf)) > 0) {
+        total+=len;
+      }
+
+      in.close();
+      Assert.assertEquals(73472, total);
+
+      try {
+        archive.openStream("../book/0.htm");
+        Assert.fail("Did not get FileNotFoundException!");
+      }
+      catch (FileNotFoundException e) {
+        // expected
+      }
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  @Test
+  public void openHuge() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("huge.zip", asset);
+
+    try {
+      SafeZipArchive.open(asset, new ZipUtils.Options()).close();
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  static private void copyAsset(String asset, File dst) throws IOException {
+    InputStream in=InstrumentationRegistry.getContext().getAssets().open(asset);
+    FileOutputStream out=new FileOutputStream(dst);
+    byte[] buf=new byte[1024];
+    int len;
+
+    while ((len=in.read(buf)) > 0) {
+      out.write(buf, 0, len);
+    }
+
+    in.close();
+    out.close();
+  }
+}
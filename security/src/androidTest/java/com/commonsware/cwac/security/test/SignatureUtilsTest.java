@@ -0,0 +1,60 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.security.SignatureUtils;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.security.NoSuchAlgorithmException;
+
+@RunWith(AndroidJUnit4.class)
+public class SignatureUtilsTest {
+  @Test
+  public void ownHashCached()
+    throws PackageManager.NameNotFoundException, NoSuchAlgorithmException {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    String hash=SignatureUtils.getOwnSignatureHash(ctxt);
+
+    Assert.assertEquals(95, hash.length());
+    Assert.assertSame(hash, SignatureUtils.getOwnSignatureHash(ctxt));
+    Assert.assertSame(hash,
+      SignatureUtils.getSignatureHash(ctxt, ctxt.getPackageName()));
+  }
+
+  @Test
+  public void otherHashCached()
+    throws PackageManager.NameNotFoundException, NoSuchAlgorithmException {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+
+    // the framework's own package, present on every device
+
+    String hash=SignatureUtils.getSignatureHash(ctxt, "android");
+
+    Assert.assertEquals(95, hash.length());
+    Assert.assertSame(hash, SignatureUtils.getSignatureHash(ctxt, "android"));
+  }
+
+  @Test(expected=PackageManager.NameNotFoundException.class)
+  public void missingPackage()
+    throws PackageManager.NameNotFoundException, NoSuchAlgorithmException {
+    SignatureUtils.getSignatureHash(InstrumentationRegistry.getTargetContext(),
+      "com.commonsware.cwac.security.no.such.package");
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.security.test;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.security.TarUtils;
+import com.commonsware.cwac.security.ZipUtils;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class TarUtilsTest {
+  private static final String TEST_DIR="test-tar";
+  private static File externalRoot;
+
+  @BeforeClass
+  public static void initOnce() {
+    externalRoot=new File(InstrumentationRegistry.getTargetContext().getExternalCacheDir(), TEST_DIR);
+  }
+
+  @Before
+  public void init() {
+    if (externalRoot.exists()) {
+      ZipUtils.delete(externalRoot);
+    }
+
+    externalRoot.mkdirs();
+  }
+
+  @Test
+  public void untarNormal() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.tar.gz");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.tar.gz", asset);
+    TarUtils.untar(asset, destDir, new ZipUtils.Options());
+
+    File book=new File(destDir, "book");
+
+    Assert.assertTrue(book.isDirectory());
+    Assert.assertEquals(9, book.list().length);
+    Assert.assertEquals(402, new File(book, "pgepub.css").length());
+  }
+
+  @Test
+  public void untarStream() throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(externalRoot, "result");
+    InputStream in=InstrumentationRegistry
+      .getContext()
+      .getAssets()
+      .open("WarOfTheWorlds.tar.gz");
+
+    TarUtils.untar(in, destDir, new ZipUtils.Options());
+    Assert.assertEquals(9, new File(destDir, "book").list().length);
+  }
+
+  @Test
+  public void untarOutside() throws IOException {
+    File asset=new File(externalRoot, "asset.tar");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("outside.tar", asset);
+
+    try {
+      TarUtils.untar(asset, destDir, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertFalse(new File(externalRoot, "outside.txt").exists());
+    }
+  }
+
+  @Test
+  public void untarSymlinkOutside() throws IOException {
+    File asset=new File(externalRoot, "asset.tar");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("symlink.tar", asset);
+
+    try {
+      TarUtils.untar(asset, destDir, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  static private void copyAsset(String asset, File dst) throws IOException {
+    InputStream in=InstrumentationRegistry.getContext().getAssets().open(asset);
+    FileOutputStream out=new FileOutputStream(dst);
+    byte[] buf=new byte[1024];
+    int len;
+
+    while ((len=in.read(buf)) > 0) {
+      out.write(buf, 0, len);
+    }
+
+    in.close();
+    out.close();
+  }
+}
@@ -26,6 +26,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 public class ZipUtilsTest {
@@ -119,6 +126,153 @@ public class ZipUtilsTest {
     }
   }
 
+  @Test
+  public void unzipNormalExternalParallel() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir, 1024, 1024*1024*64, 4);
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipHugeExternalParallel() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("huge.zip", asset);
+
+    try {
+      ZipUtils.unzip(asset, destDir, 1024, 1024*1024*64, 4);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertFalse(destDir.exists());
+    }
+  }
+
+  @Test
+  public void unzipNormalExternalBatchSync() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir,
+      new ZipUtils.Options().durability(ZipUtils.Durability.BATCH));
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipNormalStream() throws IOException, ZipUtils.UnzipException {
+    File destDir=new File(externalRoot, "result");
+    InputStream in=InstrumentationRegistry.getContext().getAssets().open("WarOfTheWorlds.zip");
+
+    ZipUtils.unzip(in, destDir, new ZipUtils.Options());
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipOutsideStream() throws IOException {
+    File destDir=new File(externalRoot, "result");
+    InputStream in=InstrumentationRegistry.getContext().getAssets().open("outside.zip");
+
+    try {
+      ZipUtils.unzip(in, destDir, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertFalse(destDir.exists());
+    }
+  }
+
+  @Test
+  public void unzipStagedDirectoryNotEmpty() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    destDir.mkdirs();
+    new File(destDir, "thisExists.txt").createNewFile();
+
+    ZipUtils.unzip(asset, destDir, new ZipUtils.Options().staged(true));
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipStagedOutsideExternal() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("outside.zip", asset);
+
+    destDir.mkdirs();
+    new File(destDir, "thisExists.txt").createNewFile();
+
+    try {
+      ZipUtils.unzip(asset, destDir, new ZipUtils.Options().staged(true));
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertEquals(1, destDir.listFiles().length);
+    }
+  }
+
+  @Test
+  public void inspectHugeExternal() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("huge.zip", asset);
+
+    try {
+      ZipUtils.inspect(asset, new ZipUtils.Options());
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void inspectNormalExternal() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.inspect(asset, new ZipUtils.Options().maxCompressionRatio(100));
+  }
+
+  @Test
+  public void unzipExactSizeLimit() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir, new ZipUtils.Options().maxSize(372016L));
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipHugeRatioStream() throws IOException {
+    File destDir=new File(externalRoot, "result");
+    InputStream in=InstrumentationRegistry.getContext().getAssets().open("huge.zip");
+
+    try {
+      ZipUtils.unzip(in, destDir,
+        new ZipUtils.Options()
+          .maxSize(Long.MAX_VALUE)
+          .maxCompressionRatio(100));
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertFalse(destDir.exists());
+    }
+  }
+
   @Test
   public void unzipDirectoryNotEmpty() throws IOException {
     File asset=new File(externalRoot, "asset.zip");
@@ -142,6 +296,315 @@ public class ZipUtilsTest {
     }
   }
 
+  @Test
+  public void unzipCheckpointed() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    File journal=new File(externalRoot, "result.journal");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir,
+      new ZipUtils.Options().checkpoint(journal));
+    assertWarOfTheWorlds(destDir);
+    Assert.assertFalse(journal.exists());
+  }
+
+  @Test
+  public void unzipFiltered() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir,
+      new ZipUtils.Options().filter(ZipUtils.EntryFilter.glob("book/*.css")));
+
+    File book=new File(destDir, "book");
+
+    Assert.assertEquals(2, book.listFiles().length);
+    Assert.assertEquals(402, new File(book, "pgepub.css").length());
+    Assert.assertEquals(222, new File(book, "0.css").length());
+  }
+
+  @Test
+  public void unzipWithListener() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    final ZipUtils.UnzipStats[] result=new ZipUtils.UnzipStats[1];
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir,
+      new ZipUtils.Options().listener(new ZipUtils.UnzipListener() {
+        @Override
+        public void onProgress(ZipUtils.UnzipStats stats) {
+          Assert.assertTrue(stats.getEntries()<=stats.getTotalEntries());
+        }
+
+        @Override
+        public void onComplete(ZipUtils.UnzipStats stats) {
+          result[0]=stats;
+        }
+      }));
+    assertWarOfTheWorlds(destDir);
+    Assert.assertEquals(9, result[0].getEntries());
+    Assert.assertEquals(9, result[0].getTotalEntries());
+    Assert.assertEquals(372016, result[0].getUncompressedBytes());
+  }
+
+  @Test
+  public void unzipNotInManifest() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    HashMap<String, String> manifest=new HashMap<String, String>();
+
+    manifest.put("book/0.css", "00:11:22:33");
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    try {
+      ZipUtils.unzip(asset, destDir, new ZipUtils.Options().manifest(manifest));
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertFalse(destDir.exists());
+    }
+  }
+
+  @Test
+  public void updateChangedAndExtra() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    File changed=new File(destDir, "book/0.css");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir);
+
+    FileOutputStream out=new FileOutputStream(changed);
+
+    out.write(1);
+    out.close();
+    new File(destDir, "extra.txt").createNewFile();
+
+    ZipUtils.update(asset, destDir, new ZipUtils.Options());
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void updateFilteredKeepsOthers() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    ZipUtils.Options options=new ZipUtils.Options()
+      .filter(ZipUtils.EntryFilter.prefixes("book/"));
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir, options);
+
+    File mine=new File(destDir, "mine");
+    File empty=new File(destDir, "book/empty");
+
+    Assert.assertTrue(mine.mkdir());
+    Assert.assertTrue(empty.mkdir());
+    new File(destDir, "book/extra.txt").createNewFile();
+
+    ZipUtils.update(asset, destDir, options);
+    Assert.assertTrue(mine.isDirectory());
+    Assert.assertFalse(empty.exists());
+    Assert.assertTrue(mine.delete());
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipDedup() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir,
+      new ZipUtils.Options().dedup(true).threadCount(4));
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipToMemory() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    Map<String, ByteBuffer> contents=
+      ZipUtils.unzipToMemory(asset, new ZipUtils.Options(), 1024*1024);
+
+    Assert.assertEquals(9, contents.size());
+    Assert.assertTrue(contents.containsKey("book/0.css"));
+  }
+
+  @Test
+  public void unzipToMemoryOverBudget() throws IOException {
+    File asset=new File(externalRoot, "asset.zip");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    try {
+      ZipUtils.unzipToMemory(asset, new ZipUtils.Options(), 1024);
+      Assert.fail("Did not get ZipUtils.UnzipException!");
+    }
+    catch (ZipUtils.UnzipException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void unzipAsync() throws Exception {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzipAsync(asset, destDir, new ZipUtils.Options()).get();
+    assertWarOfTheWorlds(destDir);
+  }
+
+  @Test
+  public void unzipAsyncCancel() throws Exception {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    ExecutorService executor=Executors.newSingleThreadExecutor();
+    final CountDownLatch latch=new CountDownLatch(1);
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    // keep the executor busy, so the unzip is still queued
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          latch.await();
+        }
+        catch (InterruptedException e) {
+          // just end
+        }
+      }
+    });
+
+    ZipUtils.UnzipFuture future=ZipUtils.unzipAsync(asset, destDir,
+      new ZipUtils.Options().executor(executor));
+
+    Assert.assertTrue(future.cancel(true));
+    latch.countDown();
+    Assert.assertTrue(future.awaitTermination(5, TimeUnit.SECONDS));
+    executor.shutdown();
+    Assert.assertFalse(destDir.exists());
+  }
+
+  @Test
+  public void unzipAsyncCancelAtEnd() throws Exception {
+    unzipAsyncCancelAtEnd(new ZipUtils.Options());
+  }
+
+  @Test
+  public void unzipAsyncCancelAtEndStaged() throws Exception {
+    unzipAsyncCancelAtEnd(new ZipUtils.Options().staged(true));
+  }
+
+  @Test
+  public void unzipAsyncCancelAfterFinish() throws Exception {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    ZipUtils.UnzipFuture future=
+      ZipUtils.unzipAsync(asset, destDir, new ZipUtils.Options());
+
+    future.get();
+    Assert.assertFalse(future.cancel(true));
+    Assert.assertFalse(future.isCancelled());
+    assertWarOfTheWorlds(destDir);
+  }
+
+  // cancels once all of the files are written, before the
+  // unzip is committed, which has to roll it back, rather than
+  // leave a finished unzip reported as cancelled
+
+  private void unzipAsyncCancelAtEnd(ZipUtils.Options options)
+    throws Exception {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    final ZipUtils.UnzipFuture[] future=new ZipUtils.UnzipFuture[1];
+    final boolean[] cancelled=new boolean[1];
+    final CountDownLatch ready=new CountDownLatch(1);
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+
+    future[0]=ZipUtils.unzipAsync(asset, destDir,
+      options.listener(new ZipUtils.UnzipListener() {
+        @Override
+        public void onProgress(ZipUtils.UnzipStats stats) {
+          // unused
+        }
+
+        @Override
+        public void onComplete(ZipUtils.UnzipStats stats) {
+          try {
+            ready.await();
+          }
+          catch (InterruptedException e) {
+            // just end
+          }
+
+          cancelled[0]=future[0].cancel(true);
+        }
+      }));
+    ready.countDown();
+
+    Assert.assertTrue(future[0].awaitTermination(5, TimeUnit.SECONDS));
+    Assert.assertTrue(cancelled[0]);
+    Assert.assertTrue(future[0].isCancelled());
+    Assert.assertFalse(destDir.exists());
+  }
+
+  @Test
+  public void deleteInParallel()throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+    final int[] deleted=new int[1];
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir);
+    Assert.assertTrue(ZipUtils.delete(destDir,
+      new ZipUtils.DeleteListener() {
+        @Override
+        public void onProgress(int count) {
+          deleted[0]=count;
+        }
+      }, 4));
+    Assert.assertFalse(destDir.exists());
+    Assert.assertEquals(11, deleted[0]);
+  }
+
+  @Test
+  public void deleteAsync() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, destDir);
+    Assert.assertTrue(ZipUtils.deleteAsync(destDir));
+    Assert.assertFalse(destDir.exists());
+  }
+
+  @Test
+  public void zipRoundTrip() throws IOException, ZipUtils.UnzipException {
+    File asset=new File(externalRoot, "asset.zip");
+    File srcDir=new File(externalRoot, "source");
+    File rezipped=new File(externalRoot, "rezipped.zip");
+    File destDir=new File(externalRoot, "result");
+
+    copyAsset("WarOfTheWorlds.zip", asset);
+    ZipUtils.unzip(asset, srcDir);
+    ZipUtils.zip(srcDir, rezipped, new ZipUtils.Options().threadCount(4));
+    ZipUtils.unzip(rezipped, destDir);
+    assertWarOfTheWorlds(destDir);
+  }
+
   private void assertWarOfTheWorlds(File destDir) {
     Assert.assertEquals(1, destDir.listFiles().length);
 
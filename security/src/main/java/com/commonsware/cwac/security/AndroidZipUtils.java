@@ -0,0 +1,48 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.os.ParcelFileDescriptor;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Android-specific flavors of the ZipUtils methods. ZipUtils
+ * itself lives in security-core, which has no Android
+ * dependencies.
+ */
+public class AndroidZipUtils {
+  /**
+   * Unzips a ZIP-style archive, read from the supplied
+   * ParcelFileDescriptor, to the designated directory. This
+   * is the same as the InputStream flavor of
+   * ZipUtils.unzip(), and is handy for archives obtained from
+   * a ContentResolver via openFileDescriptor().
+   *
+   * The ParcelFileDescriptor is closed by the time this method
+   * returns.
+   *
+   * @param zipFd ParcelFileDescriptor for the ZIP archive
+   * @param destDir the directory to unzip the contents to
+   * @param options an Options object describing how to unzip
+   * @throws ZipUtils.UnzipException if something goes haywire
+   */
+  public static void unzip(ParcelFileDescriptor zipFd, File destDir,
+                           ZipUtils.Options options)
+      throws ZipUtils.UnzipException, IOException {
+    ZipUtils.unzip(new ParcelFileDescriptor.AutoCloseInputStream(zipFd),
+      destDir, options);
+  }
+}
@@ -14,9 +14,11 @@
 
 package com.commonsware.cwac.security;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
@@ -27,17 +29,70 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SignatureUtils {
+  private static final ConcurrentHashMap<String, CachedHash> HASHES=
+    new ConcurrentHashMap<String, CachedHash>();
+  private static final AtomicBoolean LISTENING=new AtomicBoolean(false);
+  private static volatile String ownHash=null;
+
+  /**
+   * Our own package cannot change while this process is
+   * running (replacing it kills the process), so its hash is
+   * computed only once.
+   */
   public static String getOwnSignatureHash(Context ctxt)
                                                         throws NameNotFoundException,
                                                         NoSuchAlgorithmException {
-    return(getSignatureHash(ctxt, ctxt.getPackageName()));
+    String result=ownHash;
+
+    if (result==null) {
+      result=computeSignatureHash(ctxt, ctxt.getPackageName());
+      ownHash=result;
+    }
+
+    return(result);
   }
 
+  /**
+   * Hashes are cached, keyed by package name and the time
+   * that the package was last installed or updated. Checking
+   * that time is a much lighter call than retrieving the
+   * signatures, and it means that an app that was reinstalled
+   * just now, before we hear about it, is not given the old
+   * app's hash. Entries are dropped when packages are added,
+   * replaced, or removed.
+   */
   public static String getSignatureHash(Context ctxt, String packageName)
                                                                          throws NameNotFoundException,
                                                                          NoSuchAlgorithmException {
+    if (packageName.equals(ctxt.getPackageName())) {
+      return(getOwnSignatureHash(ctxt));
+    }
+
+    listenForPackageChanges(ctxt);
+
+    long lastUpdateTime=
+      ctxt.getPackageManager()
+        .getPackageInfo(packageName, 0).lastUpdateTime;
+    CachedHash cached=HASHES.get(packageName);
+
+    if (cached!=null && cached.lastUpdateTime==lastUpdateTime) {
+      return(cached.hash);
+    }
+
+    String result=computeSignatureHash(ctxt, packageName);
+
+    HASHES.put(packageName, new CachedHash(lastUpdateTime, result));
+
+    return(result);
+  }
+
+  private static String computeSignatureHash(Context ctxt,
+                                             String packageName)
+    throws NameNotFoundException, NoSuchAlgorithmException {
     MessageDigest md=MessageDigest.getInstance("SHA-256");
     Signature sig=
         ctxt.getPackageManager()
@@ -46,26 +101,36 @@ public class SignatureUtils {
     return(toHexStringWithColons(md.digest(sig.toByteArray())));
   }
 
-  // based on https://stackoverflow.com/a/2197650/115145
+  // registered on the Application, as it needs to outlive the
+  // caller, and a receiver's Context cannot register receivers
 
-  public static String toHexStringWithColons(byte[] bytes) {
-    char[] hexArray=
-        { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B',
-            'C', 'D', 'E', 'F' };
-    char[] hexChars=new char[(bytes.length * 3) - 1];
-    int v;
-
-    for (int j=0; j < bytes.length; j++) {
-      v=bytes[j] & 0xFF;
-      hexChars[j * 3]=hexArray[v / 16];
-      hexChars[j * 3 + 1]=hexArray[v % 16];
-
-      if (j < bytes.length - 1) {
-        hexChars[j * 3 + 2]=':';
-      }
+  private static void listenForPackageChanges(Context ctxt) {
+    if (LISTENING.compareAndSet(false, true)) {
+      Context app=ctxt.getApplicationContext();
+      IntentFilter filter=new IntentFilter();
+
+      filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+      filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+      filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+      filter.addDataScheme("package");
+
+      (app==null ? ctxt : app).registerReceiver(new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          if (intent.getData()!=null) {
+            HASHES.remove(intent.getData().getSchemeSpecificPart());
+          }
+        }
+      }, filter);
     }
+  }
 
-    return new String(hexChars);
+  /**
+   * Same as HexUtils.toHexStringWithColons(), which has no
+   * Android dependencies.
+   */
+  public static String toHexStringWithColons(byte[] bytes) {
+    return(HexUtils.toHexStringWithColons(bytes));
   }
 
   /**
@@ -475,4 +540,14 @@ public class SignatureUtils {
 
     return(result);
   }
+
+  private static class CachedHash {
+    final long lastUpdateTime;
+    final String hash;
+
+    CachedHash(long lastUpdateTime, String hash) {
+      this.lastUpdateTime=lastUpdateTime;
+      this.hash=hash;
+    }
+  }
 }